@@ -3,15 +3,24 @@ import javax.sound.sampled.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Stack;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 import java.util.prefs.Preferences;
 
 /**
@@ -34,6 +43,13 @@ public class ChessGame extends JFrame {
     public ChessGame() {
         setTitle("Java Modern Chess");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        // 关闭窗口时先停掉 AI 线程池和外部引擎
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                gameScreen.shutdownAI();
+            }
+        });
         
         // 初始化屏幕
         startScreen = new StartScreen(this);
@@ -109,6 +125,28 @@ public class ChessGame extends JFrame {
     }
 
     public static void main(String[] args) {
+        // 命令行工具：走法生成器校验与基准测试（不启动界面）
+        if (args.length > 0 && (args[0].equals("--perft") || args[0].equals("--divide"))) {
+            PerftTool.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--bench")) {
+            SearchBench.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--book-build")) {
+            OpeningBook.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--tb-build")) {
+            Tablebases.run(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--uci-check")) {
+            ChessAIController.run(args);
+            return;
+        }
+
         // 设置抗锯齿等系统属性
         // System.setProperty("awt.useSystemAAFontSettings", "on");
         // System.setProperty("swing.aatext", "true");
@@ -1049,6 +1087,20 @@ class GameScreen extends JPanel {
     private ChessAIController engineAI;
     // Dedicated AI logic for Amusement mode and non-8x8 boards
     private AmusementChessAI amusementAI;
+    // 玩家思考时 AI 是否在后台预测玩家的应着并提前搜索（-Dchess.ponder=false 关闭）
+    private static final boolean PONDER = Boolean.parseBoolean(System.getProperty("chess.ponder", "true"));
+    // 内置 AI 的计算任务在单线程执行器上运行，可随时取消
+    private final ExecutorService aiExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "AI-Worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private Future<?> aiTask;
+    // 每次取消 AI 计算后递增；旧任务返回的结果据此丢弃
+    private int aiGeneration = 0;
+    // 8x8 开局库（-Dchess.book 指定路径，默认 book.bin；文件不存在时不使用）
+    private static final OpeningBook OPENING_BOOK = OpeningBook.open(Paths.get(System.getProperty("chess.book", "book.bin")));
+    private final Random bookRandom = new Random();
     
     // Avatar display
     private JPanel avatarPanel;
@@ -1223,10 +1275,11 @@ class GameScreen extends JPanel {
 
     public void undo() {
         if (undoCount > 0 && logic.canUndo()) {
-            
-            // If AI is currently "thinking" (timer running), we stop it and only undo the player's move
-            if (aiTimer != null && aiTimer.isRunning()) {
-                aiTimer.stop();
+            boolean aiPending = aiTimer != null && aiTimer.isRunning();
+            cancelAI();
+
+            // If AI is about to move (timer running), we only undo the player's move
+            if (aiPending) {
                 logic.undoLastMove(); // Undo Player's move
             } else {
                 // Otherwise, undo until it is the Player's turn (White) again
@@ -1252,6 +1305,7 @@ class GameScreen extends JPanel {
     public int getUndoCount() { return undoCount; }
 
     public void startNewGame(boolean vsAI, int difficulty, boolean amusementMode, int multiplier) {
+        cancelAI();
         this.isVsAI = vsAI;
         // Interpret difficulty as engine Skill Level (0-20)
         this.aiSkillLevel = difficulty;
@@ -1577,21 +1631,33 @@ class GameScreen extends JPanel {
         }
     }
     
-    private void performAIMove() {
-        int boardSize = logic.getBoardSize();
+    // Amusement mode, non-8x8 boards, or no Stockfish: use the internal AI
+    private boolean usesInternalAI() {
+        return isAmusementMode || logic.getBoardSize() != 8 || engineAI == null;
+    }
 
+    private void performAIMove() {
+        // 0. Opening book: play a book move directly without searching
+        if (OPENING_BOOK != null && !isAmusementMode) {
+            Move bookMove = OPENING_BOOK.probe(logic, bookRandom);
+            if (bookMove != null) {
+                amusementAI.stopPondering();
+                if (engineAI != null) engineAI.stopPondering();
+                applyAIMove(bookMove, aiGeneration);
+                return;
+            }
+        }
         // 1. Determine if we should use internal AI
-        boolean useInternalAI = isAmusementMode || boardSize != 8 || engineAI == null;
-
-        if (useInternalAI) {
+        if (usesInternalAI()) {
             sidePanel.setAIStatus("CPU: Java AI", Color.ORANGE);
             runInternalAI();
         } else {
             // 2. Try Stockfish
-            engineAI.requestBestMoveAsync(logic, aiSkillLevel, new ChessAIController.AIResultListener() {
+            int generation = aiGeneration;
+            aiTask = engineAI.requestBestMoveAsync(logic, aiSkillLevel, new ChessAIController.AIResultListener() {
                 @Override
                 public void onBestMoveComputed(Move bestMove) {
-                    SwingUtilities.invokeLater(() -> applyAIMove(bestMove));
+                    SwingUtilities.invokeLater(() -> applyAIMove(bestMove, generation));
                 }
 
                 @Override
@@ -1599,6 +1665,7 @@ class GameScreen extends JPanel {
                     System.err.println("Stockfish failed, falling back to internal AI: " + e.getMessage());
                     // Update Status to Red
                     SwingUtilities.invokeLater(() -> {
+                         if (generation != aiGeneration) return; // 已取消
                          sidePanel.setAIStatus("CPU: Fallback (Java)", new Color(255, 80, 80));
                          runInternalAI();
                     });
@@ -1608,22 +1675,83 @@ class GameScreen extends JPanel {
     }
 
     private void runInternalAI() {
-        // Run internal AI on a background thread to prevent UI freezing
-        new Thread(() -> {
+        // Run internal AI on the AI executor to prevent UI freezing; cancelAI() aborts it
+        int generation = aiGeneration;
+        aiTask = aiExecutor.submit(() -> {
             int depth = ChessAIController.mapSkillLevelToDepth(aiSkillLevel);
-            // Cap depth to 4 for internal AI to ensure performance
-            depth = Math.min(depth, 4);
+            // 思考时间随难度增加：0 级约 0.25 秒，20 级约 2.25 秒；搜索按迭代加深在时限内完成
+            long softMillis = 250 + 100L * aiSkillLevel;
+            // 计时赛中 AI 已用时间超过玩家时，缩短思考时间，避免越落越多
+            if (timerEnabled && blackTimeSeconds > whiteTimeSeconds) softMillis /= 2;
+            long hardMillis = softMillis * 3;
             
             // Use a copy of logic to prevent UI flickering and history bloat
-            Move bestMove = amusementAI.findBestMove(logic.copy(), depth);
-            SwingUtilities.invokeLater(() -> applyAIMove(bestMove));
-        }).start();
+            GameLogic position = logic.copy();
+            Move bestMove;
+            try {
+                bestMove = amusementAI.findBestMove(position, depth, softMillis, hardMillis);
+            } catch (Throwable t) {
+                // 搜索出错时不能让对局卡在黑方回合：打印异常，改走一步随机着法
+                t.printStackTrace();
+                bestMove = randomMove(logic.copy());
+                SwingUtilities.invokeLater(() -> {
+                    if (generation == aiGeneration) sidePanel.setAIStatus("CPU: Error (random move)", new Color(255, 80, 80));
+                });
+            }
+            Move move = bestMove;
+            SwingUtilities.invokeLater(() -> applyAIMove(move, generation));
+        });
+    }
+
+    // AI 出错时的兜底：随机选一步不让自己被将军的着法，没有就随便走一步
+    private Move randomMove(GameLogic position) {
+        List<Move> safe = new ArrayList<>(), all = new ArrayList<>();
+        int boardSize = position.getBoardSize();
+        for (int r = 0; r < boardSize; r++) {
+            for (int c = 0; c < boardSize; c++) {
+                Piece p = position.getPiece(r, c);
+                if (p == null || p.isWhite) continue;
+                for (Point to : position.getValidMoves(r, c)) {
+                    Move move = new Move(r, c, to.y, to.x);
+                    all.add(move);
+                    position.movePiece(r, c, to.y, to.x);
+                    if (!position.isInCheck(false)) safe.add(move);
+                    position.undoLastMove();
+                }
+            }
+        }
+        List<Move> pool = safe.isEmpty() ? all : safe;
+        return pool.isEmpty() ? null : pool.get(new Random().nextInt(pool.size()));
+    }
+
+    // 退出程序时关闭 AI 执行器、内置 AI 的线程池和外部引擎
+    public void shutdownAI() {
+        cancelAI();
+        aiExecutor.shutdownNow();
+        amusementAI.shutdown();
+        if (engineAI != null) engineAI.shutdown();
+    }
+
+    // 取消进行中或等待中的 AI 计算（悔棋、新局、返回菜单），立即释放 CPU
+    private void cancelAI() {
+        aiGeneration++;
+        if (aiTimer != null) aiTimer.stop();
+        if (aiTask != null) {
+            aiTask.cancel(true);
+            aiTask = null;
+        }
+        amusementAI.abort();
+        if (engineAI != null) {
+            engineAI.stopSearch();
+            engineAI.stopPondering();
+        }
     }
 
     // Apply a chosen move from the engine or amusement AI
-    private void applyAIMove(Move bestMove) {
-        // Guard: If it's now White's turn (e.g. user pressed Undo), ignore this stale AI move
-        if (logic.isWhiteTurn) return;
+    private void applyAIMove(Move bestMove, int generation) {
+        // Guard: ignore results of cancelled requests (Undo, new game, menu)
+        if (generation != aiGeneration || logic.isWhiteTurn) return;
+        aiTask = null;
 
         if (bestMove != null) {
             // AI 执行移动
@@ -1641,14 +1769,14 @@ class GameScreen extends JPanel {
             if (captured != null && captured.type == PieceType.KING) {
                 board.handleWin(false); // 黑方(AI)胜
             } else {
-                // 处理兵升变 (AI 总是变后)
+                // 处理兵升变 (AI 总是变后，与搜索中的假设一致)
                 Piece movedPiece = logic.getPiece(bestMove.tr, bestMove.tc);
                 if (movedPiece != null && movedPiece.type == PieceType.PAWN) {
                      int boardSize = logic.getBoardSize();
-                     // AI是黑方，黑兵到达顶部（row 0）时升变
-                     // 白兵到达底部（row boardSize-1）时升变（虽然AI不会控制白兵，但为了完整性保留）
-                     if ((!movedPiece.isWhite && bestMove.tr == 0) || 
-                         (movedPiece.isWhite && bestMove.tr == boardSize - 1)) {
+                     // AI是黑方，黑兵向下走，到达底部（row boardSize-1）时升变
+                     // 白兵到达顶部（row 0）时升变（虽然AI不会控制白兵，但为了完整性保留）
+                     if ((!movedPiece.isWhite && bestMove.tr == boardSize - 1) || 
+                         (movedPiece.isWhite && bestMove.tr == 0)) {
                          logic.promotePiece(bestMove.tr, bestMove.tc, PieceType.QUEEN);
                          SoundManager.play(SoundEffect.PROMOTE);
                      }
@@ -1660,13 +1788,27 @@ class GameScreen extends JPanel {
                 }
                 
                 onTurnEnd(); // 轮回到玩家
+                // 终局对话框可能已在 onTurnEnd 中开了新局（generation 已变），或对局已经结束：此时不再后台思考
+                boolean gameOver = logic.isCheckmate(true);
+                if (generation == aiGeneration && !gameOver) startPondering();
             }
         } else {
             System.out.println("AI 有点懵，不知道怎么走了");
         }
     }
 
+    // AI 走完后，在玩家思考期间搜索预测的应着（后台思考）
+    private void startPondering() {
+        if (!PONDER || !isVsAI || !logic.isWhiteTurn || replayIndex >= 0) return;
+        if (usesInternalAI()) {
+            amusementAI.startPondering(logic.copy(), ChessAIController.mapSkillLevelToDepth(aiSkillLevel));
+        } else {
+            engineAI.startPondering(logic.copy(), aiSkillLevel);
+        }
+    }
+
     public void backToMenu() {
+        cancelAI();
         stopFogTimer(); // 返回菜单时停止迷雾定时器
         mainFrame.showMenu();
     }
@@ -1693,34 +1835,22 @@ class GameScreen extends JPanel {
     public List<Point> getAttackRange(boolean isWhite) {
         List<Point> range = new ArrayList<>();
         int boardSize = logic.getBoardSize();
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = logic.getPiece(r, c);
-                if (p != null && p.isWhite == isWhite) {
-                    List<Point> moves = logic.getValidMoves(r, c);
-                    for (Point m : moves) {
-                        boolean exists = false;
-                        for (Point existing : range) {
-                            if (existing.x == m.x && existing.y == m.y) {
-                                exists = true;
-                                break;
-                            }
-                        }
-                        if (!exists) {
-                            range.add(new Point(m.x, m.y));
-                        }
-                    }
-                    boolean posExists = false;
-                    for (Point existing : range) {
-                        if (existing.x == c && existing.y == r) {
-                            posExists = true;
-                            break;
-                        }
-                    }
-                    if (!posExists) {
-                        range.add(new Point(c, r));
+        boolean[] inRange = new boolean[boardSize * boardSize]; // 去重用，避免在列表里线性查找
+        // 只遍历己方棋子列表，不扫描整个棋盘
+        for (PieceType type : PieceType.values()) {
+            for (int i = 0; i < logic.pieceCount(type, isWhite); i++) {
+                int square = logic.pieceSquare(type, isWhite, i);
+                int r = square / boardSize, c = square % boardSize;
+                for (Point m : logic.getValidMoves(r, c)) {
+                    if (!inRange[m.y * boardSize + m.x]) {
+                        inRange[m.y * boardSize + m.x] = true;
+                        range.add(new Point(m.x, m.y));
                     }
                 }
+                if (!inRange[square]) {
+                    inRange[square] = true;
+                    range.add(new Point(c, r));
+                }
             }
         }
         return range;
@@ -2388,69 +2518,238 @@ class ChessBoard extends JPanel {
 }
 
 class GameLogic {
-    private Piece[][] board;
+    private static final byte WHITE_KING = Piece.code(PieceType.KING, true);
+    private static final byte BLACK_KING = Piece.code(PieceType.KING, false);
+    private static final byte WHITE_PAWN = Piece.code(PieceType.PAWN, true);
+    private static final byte BLACK_PAWN = Piece.code(PieceType.PAWN, false);
+
+    // Padded mailbox: (boardSize + 4) rows x (boardSize + 2) columns of piece codes (see Piece).
+    // The border is filled with Piece.OFFBOARD so move generation never needs bounds checks.
+    private byte[] squares;
+    private int stride; // boardSize + 2
     private int boardSize = 8;
     public boolean isWhiteTurn = true;
-    private Stack<MoveRecord> history = new Stack<>();
-    public boolean isSimulation = false; // Flag to prevent history recording and UI updates
+    // Undo stack shared by the UI and the search: two longs per made move (see makeMove),
+    // grown by doubling so making a move allocates nothing in steady state. Copies, which only
+    // search forward from their start, begin with room for SEARCH_UNDO_PLIES moves.
+    private long[] undoStack;
+    private static final int SEARCH_UNDO_PLIES = 64;
+    private int undoTop;
+    // Zobrist key of the position, updated in lift/place and on every side flip
+    private long hash;
+    private long[][] zobrist;
+    // Bitboard mirror of `squares`, only present on standard 8x8 games
+    private BitboardPosition bitboards;
+    // Piece lists: mailbox squares per Piece.colorTypeIndex, listIndex[sq] = position in its list.
+    // Lists grow in place while a position is set up; copies size them tightly (see the copy constructor)
+    private int[][] pieceList;
+    private final int[] pieceCount = new int[12];
+    private short[] listIndex;
+    // Mailbox offsets, depend on the stride
+    private int[] rookDirs, bishopDirs, queenDirs, knightOffsets;
+    // Index conversions between the mailbox and row * boardSize + col (bitboard) squares
+    private int[] toDense, toMailbox;
+    // Scratch buffer for the List<Point> adapter and countMoves, allocated on first use
+    private int[] pieceMoves;
+    // Mailbox square of each king ([0] = white, [1] = black), -1 if captured
+    private final int[] kingSquare = {-1, -1};
+    // Working arrays of generateLegalMoves; not part of the position (see Scratch)
+    private Scratch scratch;
+    // While set, addMove drops quiet moves (see generateLegalCaptures)
+    private boolean capturesOnly;
+    // Running evaluation terms kept by lift / place: material and piece-square sums per side
+    // ([0] = white), and the game phase (see EvalTables)
+    private int[][] psqTable;
+    private final int[] material = new int[2];
+    private final int[] psqScore = new int[2];
+    private int phase;
+    // Attack maps, Amusement boards only (null on 8x8): how many pieces of each side ([0] = white)
+    // attack each mailbox square, their sum per side, and the number of squares White attacks
+    // more often than Black minus the reverse. Kept by lift / place along the affected rays.
+    private byte[][] attacks;
+    private final int[] attackTotal = new int[2];
+    private int controlBalance;
+    // Zobrist key of the pawns alone, for the AI's pawn-structure cache
+    private long pawnHash;
 
     public GameLogic() {
+        undoStack = new long[512];
         resetBoard();
     }
+
+    private GameLogic(GameLogic source) {
+        undoStack = new long[2 * SEARCH_UNDO_PLIES];
+        boardSize = source.boardSize;
+        stride = source.stride;
+        rookDirs = source.rookDirs;
+        bishopDirs = source.bishopDirs;
+        queenDirs = source.queenDirs;
+        knightOffsets = source.knightOffsets;
+        toDense = source.toDense;
+        toMailbox = source.toMailbox;
+        squares = new byte[source.squares.length];
+        System.arraycopy(source.squares, 0, squares, 0, squares.length);
+        isWhiteTurn = source.isWhiteTurn;
+        hash = source.hash;
+        pawnHash = source.pawnHash;
+        zobrist = source.zobrist;
+        kingSquare[0] = source.kingSquare[0];
+        kingSquare[1] = source.kingSquare[1];
+        bitboards = source.bitboards != null ? source.bitboards.copy() : null;
+        // A side never gains pieces (a promotion replaces its pawn), so no list of the copy can
+        // outgrow the side's current total
+        pieceList = new int[12][];
+        for (int side = 0; side < 12; side += 6) {
+            int total = 0;
+            for (int i = side; i < side + 6; i++) total += source.pieceCount[i];
+            for (int i = side; i < side + 6; i++) pieceList[i] = java.util.Arrays.copyOf(source.pieceList[i], total);
+        }
+        System.arraycopy(source.pieceCount, 0, pieceCount, 0, 12);
+        listIndex = source.listIndex.clone();
+        psqTable = source.psqTable;
+        System.arraycopy(source.material, 0, material, 0, 2);
+        System.arraycopy(source.psqScore, 0, psqScore, 0, 2);
+        phase = source.phase;
+        if (source.attacks != null) attacks = new byte[][] {source.attacks[0].clone(), source.attacks[1].clone()};
+        System.arraycopy(source.attackTotal, 0, attackTotal, 0, 2);
+        controlBalance = source.controlBalance;
+    }
     
-    // Deep copy for AI simulation
+    // Deep copy for AI simulation; the copy starts with an empty undo stack
     public GameLogic copy() {
-        GameLogic clone = new GameLogic();
-        clone.boardSize = this.boardSize;
-        clone.isWhiteTurn = this.isWhiteTurn;
-        clone.isSimulation = true; // Enable simulation mode for the clone
-        
-        // Deep copy board
-        clone.board = new Piece[boardSize][boardSize];
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                if (this.board[r][c] != null) {
-                    clone.board[r][c] = new Piece(this.board[r][c].type, this.board[r][c].isWhite);
-                }
-            }
-        }
-        
-        // We don't need to copy history for AI simulation as checks don't rely on it (except undoLastMove which AI avoids)
-        
-        return clone;
+        return new GameLogic(this);
+    }
+
+    /**
+     * Pin rays and check-evasion squares of the last generateLegalMoves call, indexed by
+     * mailbox square. Entries are tagged with `stamp` so nothing has to be cleared between
+     * positions. A position allocates one on its first legal move generation and copies do
+     * not inherit it, so a search thread can lend one to every position it works on.
+     */
+    static final class Scratch {
+        private int[] pinRay = new int[0], evasion = new int[0];
+        private int stamp;
+    }
+
+    // Generate legal moves with `scratch` from now on; it must not be in use by another thread
+    void useScratch(Scratch scratch) {
+        this.scratch = scratch;
     }
     
     public int getBoardSize() {
         return boardSize;
     }
 
+    // Empty board of the given size with fresh mirrors
+    private void newBoard(int size) {
+        boardSize = size;
+        stride = size + 2;
+        squares = new byte[(size + 4) * stride];
+        java.util.Arrays.fill(squares, Piece.OFFBOARD);
+        toDense = new int[squares.length];
+        toMailbox = new int[size * size];
+        java.util.Arrays.fill(toDense, -1);
+        for (int r = 0; r < size; r++) {
+            for (int c = 0; c < size; c++) {
+                squares[sq(r, c)] = Piece.EMPTY;
+                toDense[sq(r, c)] = r * size + c;
+                toMailbox[r * size + c] = sq(r, c);
+            }
+        }
+        pieceMoves = null;
+        rookDirs = new int[] {stride, -stride, 1, -1};
+        bishopDirs = new int[] {stride + 1, stride - 1, -stride + 1, -stride - 1};
+        queenDirs = new int[] {stride, -stride, 1, -1, stride + 1, stride - 1, -stride + 1, -stride - 1};
+        knightOffsets = new int[] {2 * stride + 1, 2 * stride - 1, -2 * stride + 1, -2 * stride - 1,
+                                   stride + 2, stride - 2, -stride + 2, -stride - 2};
+        bitboards = size == 8 ? new BitboardPosition() : null;
+        pieceList = new int[12][0];
+        java.util.Arrays.fill(pieceCount, 0);
+        listIndex = new short[squares.length];
+        kingSquare[0] = kingSquare[1] = -1;
+        undoTop = 0;
+        zobrist = Zobrist.keys(size);
+        hash = pawnHash = 0;
+        psqTable = EvalTables.psq(size);
+        material[0] = material[1] = psqScore[0] = psqScore[1] = phase = 0;
+        attacks = size > 8 ? new byte[2][squares.length] : null;
+        attackTotal[0] = attackTotal[1] = controlBalance = 0;
+        isWhiteTurn = true;
+    }
+
+    private void setup(int r, int c, PieceType type, boolean isWhite) {
+        place(sq(r, c), Piece.code(type, isWhite));
+    }
+
     public void resetBoard() {
-        boardSize = 8;
-        board = new Piece[8][8];
-        history.clear();
+        newBoard(8);
         // 黑方
-        board[0][0] = new Piece(PieceType.ROOK, false); board[0][7] = new Piece(PieceType.ROOK, false);
-        board[0][1] = new Piece(PieceType.KNIGHT, false); board[0][6] = new Piece(PieceType.KNIGHT, false);
-        board[0][2] = new Piece(PieceType.BISHOP, false); board[0][5] = new Piece(PieceType.BISHOP, false);
-        board[0][3] = new Piece(PieceType.QUEEN, false);
-        board[0][4] = new Piece(PieceType.KING, false);
-        for(int i=0; i<8; i++) board[1][i] = new Piece(PieceType.PAWN, false);
+        setup(0, 0, PieceType.ROOK, false); setup(0, 7, PieceType.ROOK, false);
+        setup(0, 1, PieceType.KNIGHT, false); setup(0, 6, PieceType.KNIGHT, false);
+        setup(0, 2, PieceType.BISHOP, false); setup(0, 5, PieceType.BISHOP, false);
+        setup(0, 3, PieceType.QUEEN, false);
+        setup(0, 4, PieceType.KING, false);
+        for(int i=0; i<8; i++) setup(1, i, PieceType.PAWN, false);
 
         // 白方
-        board[7][0] = new Piece(PieceType.ROOK, true); board[7][7] = new Piece(PieceType.ROOK, true);
-        board[7][1] = new Piece(PieceType.KNIGHT, true); board[7][6] = new Piece(PieceType.KNIGHT, true);
-        board[7][2] = new Piece(PieceType.BISHOP, true); board[7][5] = new Piece(PieceType.BISHOP, true);
-        board[7][3] = new Piece(PieceType.QUEEN, true);
-        board[7][4] = new Piece(PieceType.KING, true);
-        for(int i=0; i<8; i++) board[6][i] = new Piece(PieceType.PAWN, true);
-        
-        isWhiteTurn = true;
+        setup(7, 0, PieceType.ROOK, true); setup(7, 7, PieceType.ROOK, true);
+        setup(7, 1, PieceType.KNIGHT, true); setup(7, 6, PieceType.KNIGHT, true);
+        setup(7, 2, PieceType.BISHOP, true); setup(7, 5, PieceType.BISHOP, true);
+        setup(7, 3, PieceType.QUEEN, true);
+        setup(7, 4, PieceType.KING, true);
+        for(int i=0; i<8; i++) setup(6, i, PieceType.PAWN, true);
     }
     
+    /**
+     * Position from the placement and side-to-move fields of a FEN string. Boards may
+     * be 8, 16 or 32 squares wide, and a run of empty squares may take several digits
+     * (for example "16" for an empty 16x16 row). Castling and en-passant fields are
+     * ignored because the game has neither.
+     */
+    public static GameLogic fromFEN(String fen) {
+        String[] fields = fen.trim().split("\\s+");
+        String[] rows = fields[0].split("/");
+        int size = rows.length;
+        if (size != 8 && size != 16 && size != 32) {
+            throw new IllegalArgumentException("Unsupported board size in FEN: " + size);
+        }
+        GameLogic logic = new GameLogic();
+        logic.newBoard(size);
+        for (int r = 0; r < size; r++) {
+            String row = rows[r];
+            int c = 0;
+            for (int i = 0; i < row.length(); i++) {
+                char ch = row.charAt(i);
+                if (Character.isDigit(ch)) {
+                    int run = 0;
+                    while (i < row.length() && Character.isDigit(row.charAt(i))) run = run * 10 + row.charAt(i++) - '0';
+                    i--;
+                    c += run;
+                    continue;
+                }
+                PieceType type = switch (Character.toLowerCase(ch)) {
+                    case 'p' -> PieceType.PAWN;
+                    case 'r' -> PieceType.ROOK;
+                    case 'n' -> PieceType.KNIGHT;
+                    case 'b' -> PieceType.BISHOP;
+                    case 'q' -> PieceType.QUEEN;
+                    case 'k' -> PieceType.KING;
+                    default -> throw new IllegalArgumentException("Bad piece '" + ch + "' in FEN: " + fen);
+                };
+                if (c >= size) throw new IllegalArgumentException("FEN row " + (r + 1) + " is too long: " + fen);
+                logic.setup(r, c++, type, Character.isUpperCase(ch));
+            }
+            if (c != size) throw new IllegalArgumentException("FEN row " + (r + 1) + " does not have " + size + " squares: " + fen);
+        }
+        if (fields.length > 1 && fields[1].equals("b")) {
+            logic.isWhiteTurn = false;
+            logic.hash ^= Zobrist.SIDE;
+        }
+        return logic;
+    }
+
     public void resetAmusementBoard(int multiplier) {
-        boardSize = 8 * multiplier;
-        board = new Piece[boardSize][boardSize];
-        history.clear();
+        newBoard(8 * multiplier);
         
         int pawnRows = multiplier; // 兵的行数：2倍=2行，4倍=4行
         
@@ -2459,33 +2758,33 @@ class GameLogic {
         
         // 放置后排棋子（按比例扩展）
         int pieceSpacing = boardSize / 8; // 棋子间距
-        board[blackBackRow][0] = new Piece(PieceType.ROOK, false);
-        board[blackBackRow][boardSize-1] = new Piece(PieceType.ROOK, false);
-        board[blackBackRow][pieceSpacing] = new Piece(PieceType.KNIGHT, false);
-        board[blackBackRow][boardSize-1-pieceSpacing] = new Piece(PieceType.KNIGHT, false);
-        board[blackBackRow][pieceSpacing*2] = new Piece(PieceType.BISHOP, false);
-        board[blackBackRow][boardSize-1-pieceSpacing*2] = new Piece(PieceType.BISHOP, false);
-        board[blackBackRow][pieceSpacing*3] = new Piece(PieceType.QUEEN, false);
-        board[blackBackRow][pieceSpacing*4] = new Piece(PieceType.KING, false);
+        setup(blackBackRow, 0, PieceType.ROOK, false);
+        setup(blackBackRow, boardSize-1, PieceType.ROOK, false);
+        setup(blackBackRow, pieceSpacing, PieceType.KNIGHT, false);
+        setup(blackBackRow, boardSize-1-pieceSpacing, PieceType.KNIGHT, false);
+        setup(blackBackRow, pieceSpacing*2, PieceType.BISHOP, false);
+        setup(blackBackRow, boardSize-1-pieceSpacing*2, PieceType.BISHOP, false);
+        setup(blackBackRow, pieceSpacing*3, PieceType.QUEEN, false);
+        setup(blackBackRow, pieceSpacing*4, PieceType.KING, false);
         
         // 放置黑方兵（多行，确保完全填满）
         for (int row = 1; row <= pawnRows; row++) {
             for (int col = 0; col < boardSize; col++) {
-                board[row][col] = new Piece(PieceType.PAWN, false);
+                setup(row, col, PieceType.PAWN, false);
             }
         }
         
         // 白方（底部）
         int whiteBackRow = boardSize - 1;
         
-        board[whiteBackRow][0] = new Piece(PieceType.ROOK, true);
-        board[whiteBackRow][boardSize-1] = new Piece(PieceType.ROOK, true);
-        board[whiteBackRow][pieceSpacing] = new Piece(PieceType.KNIGHT, true);
-        board[whiteBackRow][boardSize-1-pieceSpacing] = new Piece(PieceType.KNIGHT, true);
-        board[whiteBackRow][pieceSpacing*2] = new Piece(PieceType.BISHOP, true);
-        board[whiteBackRow][boardSize-1-pieceSpacing*2] = new Piece(PieceType.BISHOP, true);
-        board[whiteBackRow][pieceSpacing*3] = new Piece(PieceType.QUEEN, true);
-        board[whiteBackRow][pieceSpacing*4] = new Piece(PieceType.KING, true);
+        setup(whiteBackRow, 0, PieceType.ROOK, true);
+        setup(whiteBackRow, boardSize-1, PieceType.ROOK, true);
+        setup(whiteBackRow, pieceSpacing, PieceType.KNIGHT, true);
+        setup(whiteBackRow, boardSize-1-pieceSpacing, PieceType.KNIGHT, true);
+        setup(whiteBackRow, pieceSpacing*2, PieceType.BISHOP, true);
+        setup(whiteBackRow, boardSize-1-pieceSpacing*2, PieceType.BISHOP, true);
+        setup(whiteBackRow, pieceSpacing*3, PieceType.QUEEN, true);
+        setup(whiteBackRow, pieceSpacing*4, PieceType.KING, true);
         
         // 放置白方兵（多行，确保与黑方完全对称，数量相同）
         // 白方兵从倒数第pawnRows+1行开始（因为最后一行是后排）
@@ -2493,708 +2792,3473 @@ class GameLogic {
         for (int row = whitePawnStartRow; row < boardSize - 1; row++) {
             for (int col = 0; col < boardSize; col++) {
                 // 确保只在没有其他棋子的位置放置兵（后排已有棋子）
-                if (board[row][col] == null) {
-                    board[row][col] = new Piece(PieceType.PAWN, true);
+                if (squares[sq(row, col)] == Piece.EMPTY) {
+                    setup(row, col, PieceType.PAWN, true);
                 }
             }
         }
-        
-        isWhiteTurn = true;
     }
 
+    // (row, col) -> mailbox index
+    private int sq(int r, int c) {
+        return (r + 2) * stride + c + 1;
+    }
+
+    // Remove the piece on a mailbox square from the board and every mirror; returns its code
+    private byte lift(int sq) {
+        byte code = squares[sq];
+        if (code != Piece.EMPTY) {
+            squares[sq] = Piece.EMPTY;
+            if (attacks != null) {
+                updateAttacksFrom(sq, code, -1);
+                updateLinesThrough(sq, 1);
+            }
+            hash ^= zobrist[Piece.colorTypeIndex(code)][toDense[sq]];
+            if (code == WHITE_PAWN || code == BLACK_PAWN) pawnHash ^= zobrist[Piece.colorTypeIndex(code)][toDense[sq]];
+            if (code == WHITE_KING) kingSquare[0] = -1;
+            else if (code == BLACK_KING) kingSquare[1] = -1;
+            if (bitboards != null) bitboards.remove(toDense[sq], code);
+            // Swap the last entry of the list into the freed slot
+            int list = Piece.colorTypeIndex(code);
+            int side = list / 6;
+            material[side] -= EvalTables.VALUE[list % 6];
+            psqScore[side] -= psqTable[list][toDense[sq]];
+            phase -= EvalTables.PHASE[list % 6];
+            int last = pieceList[list][--pieceCount[list]];
+            pieceList[list][listIndex[sq]] = last;
+            listIndex[last] = listIndex[sq];
+        }
+        return code;
+    }
+
+    // Put a piece code on an empty mailbox square and update every mirror
+    private void place(int sq, byte code) {
+        if (code == Piece.EMPTY) return;
+        squares[sq] = code;
+        if (attacks != null) {
+            updateLinesThrough(sq, -1);
+            updateAttacksFrom(sq, code, 1);
+        }
+        hash ^= zobrist[Piece.colorTypeIndex(code)][toDense[sq]];
+        if (code == WHITE_PAWN || code == BLACK_PAWN) pawnHash ^= zobrist[Piece.colorTypeIndex(code)][toDense[sq]];
+        if (code == WHITE_KING) kingSquare[0] = sq;
+        else if (code == BLACK_KING) kingSquare[1] = sq;
+        if (bitboards != null) bitboards.put(toDense[sq], code);
+        int list = Piece.colorTypeIndex(code);
+        int side = list / 6;
+        material[side] += EvalTables.VALUE[list % 6];
+        psqScore[side] += psqTable[list][toDense[sq]];
+        phase += EvalTables.PHASE[list % 6];
+        if (pieceCount[list] == pieceList[list].length) {
+            pieceList[list] = java.util.Arrays.copyOf(pieceList[list], Math.max(4, 2 * pieceCount[list]));
+        }
+        listIndex[sq] = (short) pieceCount[list];
+        pieceList[list][pieceCount[list]++] = sq;
+    }
+
+    // Add delta to every square attacked by `code` standing on sq; sliders stop at the first piece
+    private void updateAttacksFrom(int sq, byte code, int delta) {
+        int side = Piece.isWhite(code) ? 0 : 1;
+        switch (Piece.typeOf(code)) {
+            case PAWN -> {
+                int ahead = sq + (side == 0 ? -stride : stride);
+                addAttack(ahead - 1, side, delta);
+                addAttack(ahead + 1, side, delta);
+            }
+            case KNIGHT -> {
+                for (int offset : knightOffsets) addAttack(sq + offset, side, delta);
+            }
+            case KING -> {
+                for (int dir : queenDirs) addAttack(sq + dir, side, delta);
+            }
+            case ROOK -> {
+                for (int dir : rookDirs) slideAttacks(sq + dir, dir, side, delta);
+            }
+            case BISHOP -> {
+                for (int dir : bishopDirs) slideAttacks(sq + dir, dir, side, delta);
+            }
+            case QUEEN -> {
+                for (int dir : queenDirs) slideAttacks(sq + dir, dir, side, delta);
+            }
+        }
+    }
+
+    // sq was emptied (delta 1) or filled (delta -1): sliders aimed through it gain or lose the squares behind it
+    private void updateLinesThrough(int sq, int delta) {
+        for (int i = 0; i < queenDirs.length; i++) {
+            int dir = queenDirs[i];
+            int s = sq - dir;
+            while (squares[s] == Piece.EMPTY) s -= dir;
+            int code = squares[s];
+            if (code == Piece.OFFBOARD) continue;
+            int type = (code & 7) - 1;
+            boolean slides = type == PieceType.QUEEN.ordinal()
+                    || type == (i < 4 ? PieceType.ROOK : PieceType.BISHOP).ordinal();
+            if (slides) slideAttacks(sq + dir, dir, Piece.isWhite(code) ? 0 : 1, delta);
+        }
+    }
+
+    // Walk from `from` along dir up to and including the first occupied square
+    private void slideAttacks(int from, int dir, int side, int delta) {
+        for (int s = from; squares[s] != Piece.OFFBOARD; s += dir) {
+            addAttack(s, side, delta);
+            if (squares[s] != Piece.EMPTY) break;
+        }
+    }
+
+    private void addAttack(int s, int side, int delta) {
+        if (squares[s] == Piece.OFFBOARD) return;
+        byte[] white = attacks[0], black = attacks[1];
+        int before = Integer.signum(white[s] - black[s]);
+        attacks[side][s] += delta;
+        attackTotal[side] += delta;
+        controlBalance += Integer.signum(white[s] - black[s]) - before;
+    }
+
+    // Pieces of the given color attacking a square (row * boardSize + col); Amusement boards only
+    public int attackCount(int square, boolean byWhite) {
+        return attacks[byWhite ? 0 : 1][toMailbox[square]];
+    }
+
+    // Attacks by the given color on a square and its eight neighbours; Amusement boards only
+    public int zoneAttacks(int square, boolean byWhite) {
+        byte[] map = attacks[byWhite ? 0 : 1];
+        int center = toMailbox[square];
+        int total = map[center];
+        for (int dir : queenDirs) total += map[center + dir];
+        return total;
+    }
+
+    // All attacks of one side counted with multiplicity, a mobility measure; Amusement boards only
+    public int attackTotal(boolean isWhite) {
+        return attackTotal[isWhite ? 0 : 1];
+    }
+
+    // Squares White attacks more often than Black minus squares Black attacks more often; Amusement boards only
+    public int controlBalance() {
+        return controlBalance;
+    }
+
+    // Material of one side, EvalTables.VALUE summed over its pieces
+    public int material(boolean isWhite) {
+        return material[isWhite ? 0 : 1];
+    }
+
+    // Piece-square total of one side (EvalTables.psq for this board size)
+    public int psqScore(boolean isWhite) {
+        return psqScore[isWhite ? 0 : 1];
+    }
+
+    // Game phase: EvalTables.PHASE summed over both sides, falling as pieces come off
+    public int phase() {
+        return phase;
+    }
+
+    // Number of pieces of the given type and color on the board
+    public int pieceCount(PieceType type, boolean isWhite) {
+        return pieceCount[Piece.colorTypeIndex(Piece.code(type, isWhite))];
+    }
+
+    // Square (row * boardSize + col) of the i-th piece of the given type and color, 0 <= i < pieceCount
+    public int pieceSquare(PieceType type, boolean isWhite, int i) {
+        return toDense[pieceList[Piece.colorTypeIndex(Piece.code(type, isWhite))][i]];
+    }
+
+    // Read-only view of a square for the UI; null when empty
     public Piece getPiece(int r, int c) {
         if (r<0||r>=boardSize||c<0||c>=boardSize) return null;
-        return board[r][c];
+        return Piece.of(squares[sq(r, c)]);
     }
 
-    // 执行移动并返回被吃掉的棋子（用于撤销）
+    // 执行移动并返回被吃掉的棋子（用于撤销）；升变由调用方随后通过 promotePiece 完成
     public Piece movePiece(int sr, int sc, int tr, int tc) {
-        Piece p = board[sr][sc];
-        Piece captured = board[tr][tc];
-        
-        // Record for undo only if NOT in simulation mode
-        if (!isSimulation) {
-            history.push(new MoveRecord(sr, sc, tr, tc, p, captured));
-        }
-        
-        board[tr][tc] = p;
-        board[sr][sc] = null;
-        isWhiteTurn = !isWhiteTurn;
-        return captured;
+        int to = sq(tr, tc);
+        return Piece.of(makeMove(Move.pack(sq(sr, sc), to, null, squares[to] != Piece.EMPTY)));
     }
 
+    // Take back the last makeMove / movePiece, including any promotion made since
     public void undoLastMove() {
-        if (!history.isEmpty()) {
-            MoveRecord r = history.pop();
-            board[r.sr][r.sc] = r.moved;
-            board[r.tr][r.tc] = r.captured;
-            
-            // Restore moved piece properties if needed?
-            // Actually `r.moved` is the object reference.
-            // But wait, if pawn upgraded?
-            // Upgrade changes type of `r.moved`. We need to revert type too?
-            // Simpler: MoveRecord stores piece type too?
-            // Or just store upgrading logic. 
-            // For now let's assume no upgrade reversion or handle it simply:
-            // Since we store Reference `r.moved`, if we changed its type in `promotePiece`, it's changed in `r.moved` too.
-            // We need to revert type!
-            if (r.moved.type != r.oldType) {
-                 r.moved.type = r.oldType;
-            }
-            
+        if (undoTop == 0) return;
+        int i = --undoTop * 2;
+        long entry = undoStack[i];
+        if (entry == 0) { // null move
             isWhiteTurn = !isWhiteTurn;
+            hash = undoStack[i + 1];
+            return;
         }
+        int to = Move.to((int) entry);
+        // Put back the recorded code rather than what stands on `to`, which also reverts a promotion
+        lift(to);
+        place(Move.from((int) entry), (byte) (entry >>> 36 & 0xF));
+        place(to, (byte) (entry >>> 32 & 0xF));
+        isWhiteTurn = !isWhiteTurn;
+        hash = undoStack[i + 1];
     }
-    
-    public boolean canUndo() { return !history.isEmpty(); }
 
-    // 撤销移动
-    public void undoMove(int sr, int sc, int tr, int tc, Piece captured) {
-        Piece p = board[tr][tc];
-        board[sr][sc] = p;
-        board[tr][tc] = captured;
-        isWhiteTurn = !isWhiteTurn; // 恢复回合
-    }
+    public boolean canUndo() { return undoTop > 0; }
     
-    // 检查指定颜色是否被将军
+    // 检查指定颜色是否被将军（国王位置已缓存，从国王格向外反向检测攻击）
     public boolean isInCheck(boolean isWhite) {
-        // 找到国王位置
-        int kingR = -1, kingC = -1;
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = board[r][c];
-                if (p != null && p.type == PieceType.KING && p.isWhite == isWhite) {
-                    kingR = r;
-                    kingC = c;
-                    break;
-                }
-            }
-            if (kingR != -1) break;
+        int king = kingSquare[isWhite ? 0 : 1];
+        if (king < 0) return false;
+        if (bitboards != null) return bitboards.isAttacked(toDense[king], !isWhite);
+        return isAttacked(king, !isWhite);
+    }
+
+    /**
+     * Is mailbox square `sq` attacked by the given side? Looks outward from `sq`:
+     * leaper offsets for knights, kings and pawns, then one ray per direction that
+     * stops at the first piece (or the OFFBOARD border) and checks for a matching slider.
+     */
+    private boolean isAttacked(int sq, boolean byWhite) {
+        byte knight = Piece.code(PieceType.KNIGHT, byWhite);
+        for (int d : knightOffsets) {
+            if (squares[sq + d] == knight) return true;
         }
-        
-        if (kingR == -1) return false;
-        
-        // 检查对方所有棋子是否能攻击到国王
-        boolean opponentIsWhite = !isWhite;
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = board[r][c];
-                if (p != null && p.isWhite == opponentIsWhite) {
-                    List<Point> moves = getValidMoves(r, c);
-                    for (Point m : moves) {
-                        if (m.y == kingR && m.x == kingC) {
-                            return true;
-                        }
-                    }
-                }
-            }
+        byte king = Piece.code(PieceType.KING, byWhite);
+        for (int d : queenDirs) {
+            if (squares[sq + d] == king) return true;
+        }
+        // Pawns attack one row forward, so look one row "behind" from their point of view
+        byte pawn = Piece.code(PieceType.PAWN, byWhite);
+        int behind = byWhite ? stride : -stride;
+        if (squares[sq + behind - 1] == pawn || squares[sq + behind + 1] == pawn) return true;
+
+        byte queen = Piece.code(PieceType.QUEEN, byWhite);
+        byte rook = Piece.code(PieceType.ROOK, byWhite);
+        for (int d : rookDirs) {
+            int t = sq + d;
+            while (squares[t] == Piece.EMPTY) t += d;
+            if (squares[t] == rook || squares[t] == queen) return true;
+        }
+        byte bishop = Piece.code(PieceType.BISHOP, byWhite);
+        for (int d : bishopDirs) {
+            int t = sq + d;
+            while (squares[t] == Piece.EMPTY) t += d;
+            if (squares[t] == bishop || squares[t] == queen) return true;
         }
         return false;
     }
 
     public boolean isCheckmate(boolean isWhite) {
-        if (!isInCheck(isWhite)) return false;
-
-        // Try every possible move for every piece of 'isWhite'
-        // If any move results in !isInCheck(isWhite), then it's not checkmate.
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = board[r][c];
-                if (p != null && p.isWhite == isWhite) {
-                    List<Point> moves = getValidMoves(r, c);
-                    for (Point m : moves) {
-                        // Simulate move
-                        // movePiece changes 'isWhiteTurn', pushes history
-                        movePiece(r, c, m.y, m.x);
-                        
-                        // Check if still in check
-                        boolean stillCheck = isInCheck(isWhite);
-                        
-                        // Undo move
-                        undoLastMove();
-                        
-                        if (!stillCheck) {
-                            return false; // Found an escape
-                        }
-                    }
-                }
-            }
-        }
-        return true;
+        return isInCheck(isWhite) && generateLegalMoves(isWhite, new int[maxMoves()]) == 0;
     }
+
     
     public void promotePiece(int r, int c, PieceType type) {
-        if(board[r][c] != null) board[r][c].type = type;
+        int sq = sq(r, c);
+        byte code = lift(sq);
+        if (code != Piece.EMPTY) place(sq, Piece.code(type, Piece.isWhite(code)));
     }
 
-    public List<Point> getValidMoves(int r, int c) {
-        List<Point> moves = new ArrayList<>();
-        Piece p = board[r][c];
-        if (p == null) return moves;
-
-        switch (p.type) {
-            case PAWN:
-                int dir = p.isWhite ? -1 : 1;
-                // 计算起始行：白方从底部开始，黑方从顶部开始
-                // 在amusement模式下，需要根据实际兵的行数来计算（确保“靠近棋盘中心”的那一排兵可以首走两格）
-                int pawnRows = boardSize / 8; // 兵的行数（2倍=2行，4倍=4行）
-                int startRow;
-                if (p.isWhite) {
-                    // 白方兵的起始行是倒数第pawnRows+1行（因为最后一行是后排）
-                    // 例如：16x16棋盘，pawnRows=2，白方兵在row 13和14，起始行是13
-                    startRow = boardSize - 1 - pawnRows;
-                } else {
-                    // 黑方兵的“前排”起始行是 pawnRows（更靠近棋盘中心的一排）
-                    // 例如：16x16棋盘，pawnRows=2，黑方兵在row 1和2，起始行是2
-                    // 这样这一排兵前方是空的，可以首走两格
-                    startRow = pawnRows;
-                }
-                
-                // 向前移动
-                if (getPiece(r + dir, c) == null) {
-                    moves.add(new Point(c, r + dir));
-                    // 如果在起始行，可以向前移动两格
-                    if (r == startRow && getPiece(r + 2 * dir, c) == null)
-                        moves.add(new Point(c, r + 2 * dir));
-                }
-                // 斜吃（斜前方一格可以吃掉对方棋子）
-                checkCapture(moves, p, r + dir, c - 1);
-                checkCapture(moves, p, r + dir, c + 1);
-                break;
-            case ROOK:
-                addLines(moves, p, r, c, 1, 0); addLines(moves, p, r, c, -1, 0);
-                addLines(moves, p, r, c, 0, 1); addLines(moves, p, r, c, 0, -1);
-                break;
-            case BISHOP:
-                addLines(moves, p, r, c, 1, 1); addLines(moves, p, r, c, 1, -1);
-                addLines(moves, p, r, c, -1, 1); addLines(moves, p, r, c, -1, -1);
-                break;
-            case QUEEN:
-                addLines(moves, p, r, c, 1, 0); addLines(moves, p, r, c, -1, 0);
-                addLines(moves, p, r, c, 0, 1); addLines(moves, p, r, c, 0, -1);
-                addLines(moves, p, r, c, 1, 1); addLines(moves, p, r, c, 1, -1);
-                addLines(moves, p, r, c, -1, 1); addLines(moves, p, r, c, -1, -1);
-                break;
-            case KNIGHT:
-                int[][] k = {{2,1},{2,-1},{-2,1},{-2,-1},{1,2},{1,-2},{-1,2},{-1,-2}};
-                for (int[] m : k) checkMove(moves, p, r + m[0], c + m[1]);
-                break;
-            case KING:
-                for (int dr = -1; dr <= 1; dr++)
-                    for (int dc = -1; dc <= 1; dc++)
-                        if (dr!=0 || dc!=0) checkMove(moves, p, r + dr, c + dc);
-                break;
+    /**
+     * Size of the per-ply buffer generateMoves needs for this position and every position
+     * reachable from it. On 8x8 no legal position has more than 218 moves; on larger boards
+     * the bound is the most moves each piece can have, counting every pawn as the queen it may
+     * promote to, for the side with the larger total (captures only lower it).
+     */
+    public int maxMoves() {
+        if (boardSize == 8) return 256;
+        int line = boardSize - 1;
+        int most = 0;
+        for (int side = 0; side < 12; side += 6) {
+            int total = (pieceCount[side] + pieceCount[side + 4]) * 4 * line  // pawns, queens
+                    + (pieceCount[side + 1] + pieceCount[side + 3]) * 2 * line  // rooks, bishops
+                    + (pieceCount[side + 2] + pieceCount[side + 5]) * 8;       // knights, kings
+            most = Math.max(most, total);
         }
-        return moves;
+        return Math.max(most, 256);
     }
 
-    private void addLines(List<Point> moves, Piece p, int r, int c, int dr, int dc) {
-        int nr = r + dr, nc = c + dc;
-        while (nr>=0 && nr<boardSize && nc>=0 && nc<boardSize) {
-            Piece t = board[nr][nc];
-            if (t == null) moves.add(new Point(nc, nr));
-            else {
-                if (t.isWhite != p.isWhite) moves.add(new Point(nc, nr));
-                break;
-            }
-            nr += dr; nc += dc;
-        }
+    /**
+     * Pseudo-legal moves of the side to move, packed as ints (see Move.pack) into
+     * `buffer` starting at index 0. Returns the number of moves written. Allocates
+     * nothing, so the search can reuse one preallocated buffer per ply.
+     */
+    public int generateMoves(int[] buffer) {
+        return generateMoves(isWhiteTurn, buffer);
     }
-    private void checkMove(List<Point> moves, Piece p, int r, int c) {
-        if (r>=0 && r<boardSize && c>=0 && c<boardSize) {
-            Piece t = board[r][c];
-            if (t == null || t.isWhite != p.isWhite) moves.add(new Point(c, r));
+
+    public int generateMoves(boolean isWhite, int[] buffer) {
+        int n = 0;
+        int first = isWhite ? 0 : 6;
+        for (int list = first; list < first + 6; list++) {
+            for (int i = 0; i < pieceCount[list]; i++) n = generatePieceMoves(pieceList[list][i], buffer, n);
         }
+        return n;
+    }
+
+    public int generateLegalMoves(int[] buffer) {
+        return generateLegalMoves(isWhiteTurn, buffer);
     }
-    private void checkCapture(List<Point> moves, Piece p, int r, int c) {
-        if (r>=0 && r<boardSize && c>=0 && c<boardSize) {
-            Piece t = board[r][c];
-            if (t != null && t.isWhite != p.isWhite) moves.add(new Point(c, r));
+
+    // Legal captures and promotions of the side to move, for the quiescence search
+    public int generateLegalCaptures(int[] buffer) {
+        capturesOnly = true;
+        try {
+            return generateLegalMoves(isWhiteTurn, buffer);
+        } finally {
+            capturesOnly = false;
         }
     }
-}
 
-/**
- * ChessAIController
- *
- * External engine controller using the UCI protocol (e.g. Stockfish).
- * - Process management: start/stop engine process with ProcessBuilder.
- * - FEN conversion: convert current GameLogic board to FEN string.
- * - Asynchronous search: run "position fen [FEN]" + "go depth [N]" in a worker thread.
- * - Result parsing: parse "bestmove [move]" (e.g. e2e4) and convert it to Move.
- * - Difficulty control: map Skill Level (0-20) to search depth.
- * - Error handling: handle missing engine binary or crashes and clean up on JVM shutdown.
- */
-class ChessAIController {
+    /**
+     * Strictly legal moves of `isWhite`, packed like generateMoves. Pins and checks are
+     * worked out once from the king square: a pinned piece may only move along its pin
+     * ray, in single check every other piece must capture the checker or block, in double
+     * check only the king moves, and king steps are tested with the king lifted off the board.
+     * The board itself only enforces pseudo-legal moves, so the other side may have left its
+     * king en prise; then the moves that take it are returned, since taking the king wins.
+     */
+    public int generateLegalMoves(boolean isWhite, int[] buffer) {
+        int king = kingSquare[isWhite ? 0 : 1];
+        if (king < 0) return generateMoves(isWhite, buffer); // king already captured, nothing to guard
+        if (isInCheck(!isWhite)) return generateKingCaptures(isWhite, buffer);
+        int checkers = findPinsAndChecks(king, isWhite);
+        int[] pinRay = scratch.pinRay, evasion = scratch.evasion;
+        int stamp = scratch.stamp;
+        int n = 0;
+        int first = isWhite ? 0 : 6;
+        // Every list but the king's; in double check only the king can move
+        for (int list = first; checkers < 2 && list < first + 5; list++) {
+            for (int p = 0; p < pieceCount[list]; p++) {
+                int from = pieceList[list][p];
+                int start = n;
+                n = generatePieceMoves(from, buffer, n);
+                boolean pinned = pinRay[from] >>> 3 == stamp;
+                if (!pinned && checkers == 0) continue;
+                int keep = start;
+                for (int i = start; i < n; i++) {
+                    int to = Move.to(buffer[i]);
+                    if (pinned && pinRay[to] != pinRay[from]) continue;
+                    if (checkers == 1 && evasion[to] != stamp) continue;
+                    buffer[keep++] = buffer[i];
+                }
+                n = keep;
+            }
+        }
 
-    public interface AIResultListener {
-        void onBestMoveComputed(Move bestMove);
-        void onFailure(Exception e);
+        int start = n;
+        n = generatePieceMoves(king, buffer, n);
+        byte code = squares[king];
+        squares[king] = Piece.EMPTY; // so sliders see through the king's old square
+        int keep = start;
+        for (int i = start; i < n; i++) {
+            if (!isAttacked(Move.to(buffer[i]), !isWhite)) buffer[keep++] = buffer[i];
+        }
+        squares[king] = code;
+        return keep;
     }
 
-    private final String enginePath;
-    private Process process;
-    private BufferedWriter engineWriter;
-    private BufferedReader engineReader;
-    private final Object ioLock = new Object();
-    private volatile boolean running = false;
+    // Pseudo-legal moves of `isWhite` that take the enemy king, legal or not: the game ends with them
+    private int generateKingCaptures(boolean isWhite, int[] buffer) {
+        int n = generateMoves(isWhite, buffer);
+        int target = kingSquare[isWhite ? 1 : 0];
+        int keep = 0;
+        for (int i = 0; i < n; i++) {
+            if (Move.to(buffer[i]) == target) buffer[keep++] = buffer[i];
+        }
+        return keep;
+    }
+
+    /**
+     * Marks the pin rays (king to pinner, tagged with the direction) and the squares that
+     * answer a check (checker plus the squares between it and the king) for the side
+     * `isWhite` with its king on `king`. Returns the number of checking pieces.
+     */
+    private int findPinsAndChecks(int king, boolean isWhite) {
+        if (scratch == null) scratch = new Scratch();
+        if (scratch.pinRay.length < squares.length) {
+            scratch.pinRay = new int[squares.length];
+            scratch.evasion = new int[squares.length];
+            scratch.stamp = 0;
+        }
+        if (++scratch.stamp == 1 << 28) {
+            java.util.Arrays.fill(scratch.pinRay, 0);
+            java.util.Arrays.fill(scratch.evasion, 0);
+            scratch.stamp = 1;
+        }
+        int[] pinRay = scratch.pinRay, evasion = scratch.evasion;
+        int stamp = scratch.stamp;
+        boolean enemy = !isWhite;
+        int checkers = 0;
+
+        byte knight = Piece.code(PieceType.KNIGHT, enemy);
+        for (int d : knightOffsets) {
+            if (squares[king + d] == knight) {
+                evasion[king + d] = stamp;
+                checkers++;
+            }
+        }
+        byte pawn = Piece.code(PieceType.PAWN, enemy);
+        int ahead = isWhite ? -stride : stride;
+        for (int t = king + ahead - 1; t <= king + ahead + 1; t += 2) {
+            if (squares[t] == pawn) {
+                evasion[t] = stamp;
+                checkers++;
+            }
+        }
+
+        byte enemyKing = Piece.code(PieceType.KING, enemy);
+        byte queen = Piece.code(PieceType.QUEEN, enemy);
+        for (int i = 0; i < queenDirs.length; i++) {
+            int d = queenDirs[i];
+            // queenDirs lists the four rook directions first, then the diagonals
+            byte slider = Piece.code(i < 4 ? PieceType.ROOK : PieceType.BISHOP, enemy);
+            if (squares[king + d] == enemyKing) {
+                evasion[king + d] = stamp;
+                checkers++;
+                continue;
+            }
+            int t = king + d;
+            while (squares[t] == Piece.EMPTY) t += d;
+            byte code = squares[t];
+            if (code == slider || code == queen) {
+                for (int s = king + d; s != t + d; s += d) evasion[s] = stamp;
+                checkers++;
+            } else if (Piece.isEnemy(code, enemy)) {
+                // Own piece: pinned if the next piece behind it is an enemy slider on this line
+                int p = t + d;
+                while (squares[p] == Piece.EMPTY) p += d;
+                if (squares[p] == slider || squares[p] == queen) {
+                    int tag = stamp << 3 | i;
+                    for (int s = king + d; s != p + d; s += d) pinRay[s] = tag;
+                }
+            }
+        }
+        return checkers;
+    }
+
+    /**
+     * Number of leaf nodes of the legal move tree `depth` plies below this position.
+     * The last ply is bulk-counted from the generator instead of being made.
+     */
+    public long perft(int depth, boolean parallel) {
+        if (depth <= 0) return 1;
+        long total = 0;
+        for (long n : divide(depth, parallel).values()) total += n;
+        return total;
+    }
+
+    /**
+     * perft split by legal root move (in generator order), keyed by Move.toString().
+     * In parallel mode every root move is counted on its own copy as a task in the
+     * common ForkJoinPool; results are collected in root order, so the output does not
+     * depend on scheduling.
+     */
+    public Map<String, Long> divide(int depth, boolean parallel) {
+        int[] roots = new int[maxMoves()];
+        int count = generateLegalMoves(roots);
+        List<ForkJoinTask<Long>> tasks = new ArrayList<>(count);
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int move = roots[i];
+            if (parallel) {
+                GameLogic child = copy();
+                tasks.add(ForkJoinPool.commonPool().submit(() -> child.countAfter(move, depth - 1)));
+            } else {
+                result.put(toMove(move).toString(), countAfter(move, depth - 1));
+            }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            result.put(toMove(roots[i]).toString(), tasks.get(i).join());
+        }
+        return result;
+    }
+
+    private long countAfter(int move, int depth) {
+        makeMove(move);
+        long nodes = countLeaves(depth, new int[Math.max(depth, 1)][maxMoves()]);
+        undoLastMove();
+        return nodes;
+    }
+
+    private long countLeaves(int depth, int[][] buffers) {
+        if (depth == 0) return 1;
+        int[] moves = buffers[depth - 1];
+        int count = generateLegalMoves(moves);
+        if (depth == 1) return count;
+        long nodes = 0;
+        for (int i = 0; i < count; i++) {
+            makeMove(moves[i]);
+            nodes += countLeaves(depth - 1, buffers);
+            undoLastMove();
+        }
+        return nodes;
+    }
+
+    /**
+     * Make a packed move and push it on the undo stack; returns the captured code.
+     * Stack entry: first long has bits 0-31 the packed move, 32-35 the captured code and
+     * 36-39 the moved code; the second long is the hash before the move.
+     */
+    public byte makeMove(int move) {
+        int from = Move.from(move), to = Move.to(move);
+        long oldHash = hash;
+        byte captured = lift(to);
+        byte moved = lift(from);
+        int i = undoTop++ * 2;
+        if (i == undoStack.length) undoStack = java.util.Arrays.copyOf(undoStack, i * 2);
+        undoStack[i] = (move & 0xFFFFFFFFL) | (long) captured << 32 | (long) moved << 36;
+        undoStack[i + 1] = oldHash;
+        PieceType promotion = Move.promotion(move);
+        place(to, promotion == null ? moved : Piece.code(promotion, Piece.isWhite(moved)));
+        isWhiteTurn = !isWhiteTurn;
+        hash ^= Zobrist.SIDE;
+        return captured;
+    }
+
+    /**
+     * Pass the turn without moving, for null-move pruning. Pushes an empty entry (packed move 0,
+     * which no real move encodes since square 0 is off the board) so undoLastMove takes it back.
+     */
+    public void makeNullMove() {
+        int i = undoTop++ * 2;
+        if (i == undoStack.length) undoStack = java.util.Arrays.copyOf(undoStack, i * 2);
+        undoStack[i] = 0;
+        undoStack[i + 1] = hash;
+        isWhiteTurn = !isWhiteTurn;
+        hash ^= Zobrist.SIDE;
+    }
+
+    // 64-bit Zobrist key of the current position (pieces plus side to move)
+    public long hash() {
+        return hash;
+    }
+
+    // Zobrist key of the pawn placement only (0 without pawns)
+    public long pawnHash() {
+        return pawnHash;
+    }
+
+    // Last packed move still on the undo stack, 0 if none
+    public int lastMove() {
+        return undoTop == 0 ? 0 : (int) undoStack[(undoTop - 1) * 2];
+    }
+
+    // Piece code (see Piece) on a mailbox square, as found in Move.from / Move.to
+    public byte codeAt(int square) {
+        return squares[square];
+    }
+
+    // Number of mailbox squares; every Move.from / Move.to is below this
+    public int squareCount() {
+        return squares.length;
+    }
+
+    // Packed move -> row/column Move for the UI
+    public Move toMove(int move) {
+        int from = toDense[Move.from(move)], to = toDense[Move.to(move)];
+        return new Move(from / boardSize, from % boardSize, to / boardSize, to % boardSize);
+    }
+
+    // Number of pseudo-legal moves of the piece on (r, c), without allocating
+    public int countMoves(int r, int c) {
+        return squares[sq(r, c)] == Piece.EMPTY ? 0 : generatePieceMoves(sq(r, c), pieceMoves(), 0);
+    }
+
+    // List<Point> adapter over the packed generator, used for ChessBoard highlighting
+    public List<Point> getValidMoves(int r, int c) {
+        List<Point> moves = new ArrayList<>();
+        if (squares[sq(r, c)] == Piece.EMPTY) return moves;
+        int[] pieceMoves = pieceMoves();
+        int count = generatePieceMoves(sq(r, c), pieceMoves, 0);
+        for (int i = 0; i < count; i++) {
+            int to = toDense[Move.to(pieceMoves[i])];
+            moves.add(new Point(to % boardSize, to / boardSize));
+        }
+        return moves;
+    }
+
+    private int[] pieceMoves() {
+        if (pieceMoves == null) pieceMoves = new int[4 * boardSize]; // a queen has at most 4 * (size - 1) moves
+        return pieceMoves;
+    }
+
+    // Append the moves of the piece on mailbox square `from` to buf[n..]; returns the new count
+    private int generatePieceMoves(int from, int[] buf, int n) {
+        byte code = squares[from];
+        boolean white = Piece.isWhite(code);
+        PieceType type = Piece.typeOf(code);
+
+        if (bitboards != null) {
+            long targets = bitboards.targets(toDense[from], type, white, white ? 6 : 1);
+            while (targets != 0) {
+                n = addMove(buf, n, from, toMailbox[Long.numberOfTrailingZeros(targets)], type == PieceType.PAWN);
+                targets &= targets - 1;
+            }
+            return n;
+        }
+
+        switch (type) {
+            case PAWN:
+                int dir = white ? -stride : stride;
+                // 计算起始行：白方从底部开始，黑方从顶部开始
+                // 在amusement模式下，需要根据实际兵的行数来计算（确保“靠近棋盘中心”的那一排兵可以首走两格）
+                int pawnRows = boardSize / 8; // 兵的行数（2倍=2行，4倍=4行）
+                int startRow;
+                if (white) {
+                    // 白方兵的起始行是倒数第pawnRows+1行（因为最后一行是后排）
+                    // 例如：16x16棋盘，pawnRows=2，白方兵在row 13和14，起始行是13
+                    startRow = boardSize - 1 - pawnRows;
+                } else {
+                    // 黑方兵的“前排”起始行是 pawnRows（更靠近棋盘中心的一排）
+                    // 例如：16x16棋盘，pawnRows=2，黑方兵在row 1和2，起始行是2
+                    // 这样这一排兵前方是空的，可以首走两格
+                    startRow = pawnRows;
+                }
+                
+                // 向前移动（边界格是 OFFBOARD，不会被当作空格）
+                if (squares[from + dir] == Piece.EMPTY) {
+                    n = addMove(buf, n, from, from + dir, true);
+                    // 如果在起始行，可以向前移动两格
+                    if (toDense[from] / boardSize == startRow && squares[from + 2 * dir] == Piece.EMPTY)
+                        n = addMove(buf, n, from, from + 2 * dir, true);
+                }
+                // 斜吃（斜前方一格可以吃掉对方棋子）
+                if (Piece.isEnemy(squares[from + dir - 1], white)) n = addMove(buf, n, from, from + dir - 1, true);
+                if (Piece.isEnemy(squares[from + dir + 1], white)) n = addMove(buf, n, from, from + dir + 1, true);
+                break;
+            case ROOK:
+                n = addLines(buf, n, white, from, rookDirs);
+                break;
+            case BISHOP:
+                n = addLines(buf, n, white, from, bishopDirs);
+                break;
+            case QUEEN:
+                n = addLines(buf, n, white, from, queenDirs);
+                break;
+            case KNIGHT:
+                for (int d : knightOffsets) n = checkMove(buf, n, white, from, from + d);
+                break;
+            case KING:
+                for (int d : queenDirs) n = checkMove(buf, n, white, from, from + d);
+                break;
+        }
+        return n;
+    }
+
+    private int addMove(int[] buf, int n, int from, int to, boolean pawn) {
+        // maxMoves() bounds every reachable position, so a full buffer is a sizing bug, not a big position
+        if (n == buf.length) throw new IllegalStateException("Move buffer of " + buf.length + " is too small");
+        int row = toDense[to] / boardSize;
+        // A pawn reaching either back rank promotes; the search always picks a queen
+        boolean promotes = pawn && (row == 0 || row == boardSize - 1);
+        if (capturesOnly && !promotes && squares[to] == Piece.EMPTY) return n;
+        buf[n] = Move.pack(from, to, promotes ? PieceType.QUEEN : null, squares[to] != Piece.EMPTY);
+        return n + 1;
+    }
+    private int addLines(int[] buf, int n, boolean white, int from, int[] dirs) {
+        for (int d : dirs) {
+            int to = from + d;
+            while (squares[to] == Piece.EMPTY) {
+                n = addMove(buf, n, from, to, false);
+                to += d;
+            }
+            if (Piece.isEnemy(squares[to], white)) n = addMove(buf, n, from, to, false);
+        }
+        return n;
+    }
+    private int checkMove(int[] buf, int n, boolean white, int from, int to) {
+        byte t = squares[to];
+        if (t == Piece.EMPTY || Piece.isEnemy(t, white)) n = addMove(buf, n, from, to, false);
+        return n;
+    }
+}
+
+/**
+ * Zobrist
+ *
+ * Random keys for position hashing on every supported board size (8x8, 16x16, 32x32).
+ * A position's key is the XOR of keys(size)[Piece.colorTypeIndex(code)][row * size + col]
+ * over all pieces, plus SIDE when Black is to move. The generator is seeded with a
+ * constant, so keys are identical from run to run.
+ */
+final class Zobrist {
+    private static long state = 0x2545F4914F6CDD1DL;
+    static final long SIDE = nextKey();
+    private static final long[][] KEYS_8 = table(8);
+    private static final long[][] KEYS_16 = table(16);
+    private static final long[][] KEYS_32 = table(32);
+
+    private Zobrist() {}
+
+    static long[][] keys(int size) {
+        switch (size) {
+            case 8: return KEYS_8;
+            case 16: return KEYS_16;
+            case 32: return KEYS_32;
+            default: throw new IllegalArgumentException("Unsupported board size: " + size);
+        }
+    }
+
+    private static long[][] table(int size) {
+        long[][] keys = new long[12][size * size];
+        for (long[] row : keys) {
+            for (int i = 0; i < row.length; i++) row[i] = nextKey();
+        }
+        return keys;
+    }
+
+    // SplitMix64
+    private static long nextKey() {
+        long z = state += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/**
+ * Evaluation tables behind GameLogic's running totals. Piece values and phase weights are
+ * indexed by PieceType ordinal; piece-square tables like Zobrist keys, by
+ * [Piece.colorTypeIndex][row * size + col], and hold the center-control bonus of every piece
+ * plus the advancement bonus of pawns. The 8x8 tables are all zero: the standard board is
+ * evaluated on material only.
+ */
+final class EvalTables {
+    //                              PAWN ROOK KNIGHT BISHOP QUEEN KING
+    static final int[] VALUE = {      10,  50,    30,    30,   90, 900};
+    static final int[] PHASE = {       0,   2,     1,     1,    4,   0};
+    private static final int[][] PSQ_8 = new int[12][64];
+    private static final int[][] PSQ_16 = table(16);
+    private static final int[][] PSQ_32 = table(32);
+
+    private EvalTables() {}
+
+    static int[][] psq(int size) {
+        switch (size) {
+            case 8: return PSQ_8;
+            case 16: return PSQ_16;
+            case 32: return PSQ_32;
+            default: throw new IllegalArgumentException("Unsupported board size: " + size);
+        }
+    }
+
+    private static int[][] table(int size) {
+        int[][] psq = new int[12][size * size];
+        for (int list = 0; list < 12; list++) {
+            boolean isWhite = list < 6;
+            boolean pawn = list % 6 == PieceType.PAWN.ordinal();
+            for (int r = 0; r < size; r++) {
+                for (int c = 0; c < size; c++) {
+                    int bonus = centerControlBonus(r, c, size);
+                    if (pawn) bonus += pawnAdvanceBonus(r, isWhite, size);
+                    psq[list][r * size + c] = bonus;
+                }
+            }
+        }
+        return psq;
+    }
+
+    private static int centerControlBonus(int r, int c, int boardSize) {
+        int centerR = boardSize / 2;
+        int centerC = boardSize / 2;
+        int distFromCenter = Math.abs(r - centerR) + Math.abs(c - centerC);
+        int maxDist = boardSize;
+        return Math.max(0, 5 - (distFromCenter * 5 / maxDist));
+    }
+
+    private static int pawnAdvanceBonus(int r, boolean isWhite, int boardSize) {
+        if (isWhite) {
+            int distanceFromTop = r;
+            return (boardSize - distanceFromTop) * 2;
+        } else {
+            int distanceFromBottom = boardSize - 1 - r;
+            return (boardSize - distanceFromBottom) * 2;
+        }
+    }
+}
+
+/**
+ * Bitboard
+ *
+ * Precomputed attack tables for the standard 8x8 board.
+ * Square index = row * 8 + col, row 0 being Black's back rank (same as GameLogic).
+ * - Knight / king / pawn attacks: plain lookup tables.
+ * - Rook / bishop attacks: "fancy" magic bitboards. Published magic sets assume a1 = 0, so
+ *   the numbers below were generated for this square layout by the usual sparse random
+ *   search: xorshift64* (shifts 12, 25, 27, multiplier 0x2545F4914F6CDD1D) seeded with 1,
+ *   candidates are the AND of three draws, rejected unless the top byte of mask * magic has
+ *   at least 6 bits set, and the first candidate that maps every blocker subset without a
+ *   destructive collision is kept. Squares are searched in order, all rooks before all
+ *   bishops, from one generator. Only the tables are built at class load (fillTable re-checks
+ *   every magic).
+ */
+final class Bitboard {
+    static final long[] KNIGHT_ATTACKS = new long[64];
+    static final long[] KING_ATTACKS = new long[64];
+    // [0] = white pawns (moving toward row 0), [1] = black pawns (moving toward row 7)
+    static final long[][] PAWN_ATTACKS = new long[2][64];
+
+    private static final long[] ROOK_MASKS = new long[64];
+    private static final long[] BISHOP_MASKS = new long[64];
+    private static final long[] ROOK_MAGICS = {
+        0x0080002080400018L, 0x8100208100104000L, 0x0180100120008008L, 0x0080080010008005L,
+        0x1080028004000800L, 0x0D0008A400020100L, 0x2080010000800200L, 0x0100058028420100L,
+        0x1004800081C00020L, 0x1021802000C00180L, 0x0242001020408200L, 0x0002004008120020L,
+        0x0809001100080084L, 0x1400808004000200L, 0x8024008244081001L, 0x8042000C0040A201L,
+        0x0462020020410080L, 0x0010004000200041L, 0x10C9010018200041L, 0x0448008010000881L,
+        0x0024008004080080L, 0x0014004040020100L, 0x00D0040001023028L, 0x00C00200108B4401L,
+        0x2080004440002002L, 0x0100210200420080L, 0x0000100080200080L, 0x0010210100100008L,
+        0x0808020040400400L, 0x0402008080040002L, 0x8020104400010802L, 0x521083020005C094L,
+        0x0080400080800030L, 0x0210002010400044L, 0x2046200101001841L, 0x8020801000800800L,
+        0x907C000800808004L, 0x0000800400800200L, 0x0202100224000881L, 0x8620800040800100L,
+        0x40C0052256808000L, 0x0090002004424004L, 0x4001004020010010L, 0x400800801000800EL,
+        0x0400040008008080L, 0x8409000400090022L, 0x0008301308040046L, 0x0220140080420001L,
+        0x8000800040002080L, 0x8000804001002500L, 0x0404410020001100L, 0x0028100080080080L,
+        0x1102080005001100L, 0x0004010040020040L, 0x000A000401084200L, 0x0302AC0500804600L,
+        0x0C02048840201102L, 0x4241004000241481L, 0x4080401020040901L, 0x2002002040080412L,
+        0x0106000410082002L, 0x0222001008040102L, 0x9091002082000421L, 0x100C004030810402L
+    };
+    private static final long[] BISHOP_MAGICS = {
+        0x0040920242002100L, 0x00100111011A0100L, 0x000808204080001CL, 0x0828208020010020L,
+        0x0042021080021206L, 0x1428440220404001L, 0x4001011002202730L, 0x004D002814020880L,
+        0x0024A00850210040L, 0x000348412C208202L, 0x0002100414404800L, 0x0200082080202004L,
+        0x0000040420100080L, 0x004C0101A0100080L, 0x8020861221044000L, 0x208A018A5C0A2008L,
+        0x08C0801002085102L, 0x0420981049820282L, 0x2810008101142100L, 0x0402100402120010L,
+        0x2A04004211040000L, 0x0100400488201002L, 0x08120080820160C0L, 0xA081000020825010L,
+        0x0012408058084806L, 0x0002104020194200L, 0x4448208004080081L, 0x0084010040200880L,
+        0x0010030006200800L, 0x0848020090208400L, 0x000822100C420210L, 0x01040020204A0201L,
+        0x800834140942080AL, 0x0004100440082180L, 0x829C060200010401L, 0x0813020080080080L,
+        0x0801080200802200L, 0x0010150042020040L, 0x0382808200110800L, 0x00020840401A0200L,
+        0x2208901090000A08L, 0x0100480804040880L, 0x0C00084410000200L, 0x0002012015000809L,
+        0x3100012011000204L, 0x0040100040840440L, 0x0021480100500101L, 0x0001810405048080L,
+        0x0006011120100220L, 0x0060849808424010L, 0x2410004610904008L, 0xA000040020880418L,
+        0x0054002002049000L, 0x00E92004D0088826L, 0x0004049024011044L, 0x0810021081021010L,
+        0x0400804410144200L, 0x1001062108023000L, 0x1110000200840412L, 0x01900902020A0202L,
+        0x2200090040228220L, 0x0008048820086085L, 0x2021C18401820A01L, 0x40402101010A0180L
+    };
+    private static final int[] ROOK_SHIFTS = new int[64];
+    private static final int[] BISHOP_SHIFTS = new int[64];
+    private static final long[][] ROOK_TABLE = new long[64][];
+    private static final long[][] BISHOP_TABLE = new long[64][];
+
+    private static final int[][] ROOK_DIRS = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+    private static final int[][] BISHOP_DIRS = {{1, 1}, {1, -1}, {-1, 1}, {-1, -1}};
+
+    static {
+        int[][] knight = {{2,1},{2,-1},{-2,1},{-2,-1},{1,2},{1,-2},{-1,2},{-1,-2}};
+        for (int sq = 0; sq < 64; sq++) {
+            int r = sq >>> 3, c = sq & 7;
+            for (int[] d : knight) KNIGHT_ATTACKS[sq] |= bit(r + d[0], c + d[1]);
+            for (int dr = -1; dr <= 1; dr++)
+                for (int dc = -1; dc <= 1; dc++)
+                    if (dr != 0 || dc != 0) KING_ATTACKS[sq] |= bit(r + dr, c + dc);
+            PAWN_ATTACKS[0][sq] = bit(r - 1, c - 1) | bit(r - 1, c + 1);
+            PAWN_ATTACKS[1][sq] = bit(r + 1, c - 1) | bit(r + 1, c + 1);
+        }
+
+        for (int sq = 0; sq < 64; sq++) {
+            ROOK_MASKS[sq] = relevantMask(sq, ROOK_DIRS);
+            BISHOP_MASKS[sq] = relevantMask(sq, BISHOP_DIRS);
+            ROOK_SHIFTS[sq] = 64 - Long.bitCount(ROOK_MASKS[sq]);
+            BISHOP_SHIFTS[sq] = 64 - Long.bitCount(BISHOP_MASKS[sq]);
+            ROOK_TABLE[sq] = new long[1 << Long.bitCount(ROOK_MASKS[sq])];
+            BISHOP_TABLE[sq] = new long[1 << Long.bitCount(BISHOP_MASKS[sq])];
+            fillTable(sq, ROOK_MASKS[sq], ROOK_MAGICS[sq], ROOK_DIRS, ROOK_TABLE[sq]);
+            fillTable(sq, BISHOP_MASKS[sq], BISHOP_MAGICS[sq], BISHOP_DIRS, BISHOP_TABLE[sq]);
+        }
+    }
+
+    private Bitboard() {}
+
+    static long bit(int r, int c) {
+        return (r >= 0 && r < 8 && c >= 0 && c < 8) ? 1L << (r * 8 + c) : 0L;
+    }
+
+    static long rookAttacks(int sq, long occupied) {
+        return ROOK_TABLE[sq][(int) (((occupied & ROOK_MASKS[sq]) * ROOK_MAGICS[sq]) >>> ROOK_SHIFTS[sq])];
+    }
+
+    static long bishopAttacks(int sq, long occupied) {
+        return BISHOP_TABLE[sq][(int) (((occupied & BISHOP_MASKS[sq]) * BISHOP_MAGICS[sq]) >>> BISHOP_SHIFTS[sq])];
+    }
+
+    static long queenAttacks(int sq, long occupied) {
+        return rookAttacks(sq, occupied) | bishopAttacks(sq, occupied);
+    }
+
+    // Blocker squares that can change a slider's attacks (board edges excluded)
+    private static long relevantMask(int sq, int[][] dirs) {
+        long mask = 0;
+        int r0 = sq >>> 3, c0 = sq & 7;
+        for (int[] d : dirs) {
+            int r = r0 + d[0], c = c0 + d[1];
+            while (r + d[0] >= 0 && r + d[0] < 8 && c + d[1] >= 0 && c + d[1] < 8) {
+                mask |= 1L << (r * 8 + c);
+                r += d[0];
+                c += d[1];
+            }
+        }
+        return mask;
+    }
+
+    // Plain ray walk, only used while building the magic tables
+    private static long slidingAttacks(int sq, long occupied, int[][] dirs) {
+        long attacks = 0;
+        int r0 = sq >>> 3, c0 = sq & 7;
+        for (int[] d : dirs) {
+            int r = r0 + d[0], c = c0 + d[1];
+            while (r >= 0 && r < 8 && c >= 0 && c < 8) {
+                long b = 1L << (r * 8 + c);
+                attacks |= b;
+                if ((occupied & b) != 0) break;
+                r += d[0];
+                c += d[1];
+            }
+        }
+        return attacks;
+    }
+
+    private static void fillTable(int sq, long mask, long magic, int[][] dirs, long[] table) {
+        int shift = 64 - Long.bitCount(mask);
+        boolean[] used = new boolean[table.length];
+        // Carry-Rippler enumeration of every subset of the mask
+        long subset = 0;
+        do {
+            int idx = (int) ((subset * magic) >>> shift);
+            long attacks = slidingAttacks(sq, subset, dirs);
+            if (used[idx] && table[idx] != attacks) {
+                throw new IllegalStateException("Bad magic for square " + sq);
+            }
+            used[idx] = true;
+            table[idx] = attacks;
+            subset = (subset - mask) & mask;
+        } while (subset != 0);
+    }
+}
+
+/**
+ * BitboardPosition
+ *
+ * 64-bit bitboard view of an 8x8 position: one mask per (color, piece type),
+ * one per color and the total occupancy. GameLogic keeps it in sync with its
+ * square array and answers move / attack queries from it on standard boards.
+ */
+final class BitboardPosition {
+    // index = (isWhite ? 0 : 6) + PieceType.ordinal()
+    private final long[] pieces = new long[12];
+    private long white, black, occupied;
+
+    BitboardPosition copy() {
+        BitboardPosition clone = new BitboardPosition();
+        System.arraycopy(pieces, 0, clone.pieces, 0, 12);
+        clone.white = white;
+        clone.black = black;
+        clone.occupied = occupied;
+        return clone;
+    }
+
+    private static int index(PieceType type, boolean isWhite) {
+        return (isWhite ? 0 : 6) + type.ordinal();
+    }
+
+    void put(int sq, byte code) {
+        long b = 1L << sq;
+        pieces[Piece.colorTypeIndex(code)] |= b;
+        if (Piece.isWhite(code)) white |= b; else black |= b;
+        occupied |= b;
+    }
+
+    void remove(int sq, byte code) {
+        long b = ~(1L << sq);
+        pieces[Piece.colorTypeIndex(code)] &= b;
+        white &= b;
+        black &= b;
+        occupied &= b;
+    }
+
+    long pieces(PieceType type, boolean isWhite) {
+        return pieces[index(type, isWhite)];
+    }
+
+    long colorMask(boolean isWhite) {
+        return isWhite ? white : black;
+    }
+
+    long occupied() {
+        return occupied;
+    }
+
+    /**
+     * Pseudo-legal destinations (same rules as GameLogic: no castling, no en passant,
+     * pawns may double-step only from `pawnStartRow`).
+     */
+    long targets(int sq, PieceType type, boolean isWhite, int pawnStartRow) {
+        long own = isWhite ? white : black;
+        switch (type) {
+            case PAWN: {
+                long enemy = isWhite ? black : white;
+                long moves = Bitboard.PAWN_ATTACKS[isWhite ? 0 : 1][sq] & enemy;
+                int step = isWhite ? -8 : 8;
+                int one = sq + step;
+                if (one >= 0 && one < 64 && (occupied & (1L << one)) == 0) {
+                    moves |= 1L << one;
+                    int two = one + step;
+                    if ((sq >>> 3) == pawnStartRow && two >= 0 && two < 64 && (occupied & (1L << two)) == 0) {
+                        moves |= 1L << two;
+                    }
+                }
+                return moves;
+            }
+            case KNIGHT: return Bitboard.KNIGHT_ATTACKS[sq] & ~own;
+            case KING:   return Bitboard.KING_ATTACKS[sq] & ~own;
+            case ROOK:   return Bitboard.rookAttacks(sq, occupied) & ~own;
+            case BISHOP: return Bitboard.bishopAttacks(sq, occupied) & ~own;
+            case QUEEN:  return Bitboard.queenAttacks(sq, occupied) & ~own;
+        }
+        return 0L;
+    }
+
+    // Is `sq` attacked by any piece of the given color?
+    boolean isAttacked(int sq, boolean byWhite) {
+        int o = byWhite ? 0 : 6;
+        if ((Bitboard.KNIGHT_ATTACKS[sq] & pieces[o + PieceType.KNIGHT.ordinal()]) != 0) return true;
+        if ((Bitboard.KING_ATTACKS[sq] & pieces[o + PieceType.KING.ordinal()]) != 0) return true;
+        // A white pawn attacks sq if sq would attack it as a black pawn, and vice versa
+        if ((Bitboard.PAWN_ATTACKS[byWhite ? 1 : 0][sq] & pieces[o + PieceType.PAWN.ordinal()]) != 0) return true;
+        long queens = pieces[o + PieceType.QUEEN.ordinal()];
+        if ((Bitboard.rookAttacks(sq, occupied) & (pieces[o + PieceType.ROOK.ordinal()] | queens)) != 0) return true;
+        return (Bitboard.bishopAttacks(sq, occupied) & (pieces[o + PieceType.BISHOP.ordinal()] | queens)) != 0;
+    }
+}
+
+/**
+ * PerftTool
+ *
+ * Command-line check and benchmark for the legal move generator:
+ *   java ChessGame --perft [depth] [--parallel]      run the position suite
+ *   java ChessGame --divide depth "fen" [--parallel]  leaf counts per root move
+ * Expected counts follow this game's rules: no castling, no en passant, and pawns
+ * always promote to a queen. They therefore differ from published perft tables
+ * wherever those rules come into play.
+ */
+final class PerftTool {
+    private static final class Position {
+        final String name;
+        final java.util.function.Supplier<GameLogic> setup;
+        final long[] expected; // expected[d - 1] = perft(d)
+
+        Position(String name, java.util.function.Supplier<GameLogic> setup, long... expected) {
+            this.name = name;
+            this.setup = setup;
+            this.expected = expected;
+        }
+    }
+
+    private static final Position[] SUITE = {
+        new Position("8x8 start", GameLogic::new,
+                20L, 400L, 8902L, 197281L, 4865351L),
+        new Position("16x16 Amusement start", () -> amusement(2),
+                38L, 1444L, 55100L, 2102500L),
+        new Position("32x32 Amusement start", () -> amusement(4),
+                78L, 6084L, 474474L),
+        new Position("Kiwipete", () -> GameLogic.fromFEN("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w"),
+                46L, 1865L, 86585L, 3488552L),
+        new Position("Rook endgame", () -> GameLogic.fromFEN("8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w"),
+                14L, 191L, 2810L, 43087L, 671300L),
+        new Position("Promotions", () -> GameLogic.fromFEN("r3k2r/Pppp1ppp/1b3nbn/NBB1P3/qn2P3/5N2/Pp1P2PP/R2Q1RK1 w"),
+                41L, 1499L, 60686L, 2316528L),
+        new Position("Pinned promotion", () -> GameLogic.fromFEN("rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w"),
+                40L, 1339L, 51750L, 1729274L),
+    };
+
+    private PerftTool() {}
+
+    private static GameLogic amusement(int multiplier) {
+        GameLogic logic = new GameLogic();
+        logic.resetAmusementBoard(multiplier);
+        return logic;
+    }
+
+    static void run(String[] args) {
+        boolean parallel = false;
+        List<String> rest = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--parallel")) parallel = true;
+            else rest.add(arg);
+        }
+        if (rest.get(0).equals("--divide")) {
+            if (rest.size() < 3) {
+                System.err.println("Usage: java ChessGame --divide <depth> \"<fen>\" [--parallel]");
+                System.exit(2);
+            }
+            divide(GameLogic.fromFEN(rest.get(2)), Integer.parseInt(rest.get(1)), parallel);
+            return;
+        }
+        int depth = rest.size() > 1 ? Integer.parseInt(rest.get(1)) : -1;
+        boolean ok = true;
+        for (Position position : SUITE) {
+            ok &= runPosition(position, depth < 0 ? position.expected.length : depth, parallel);
+        }
+        System.out.println(ok ? "All counts match." : "COUNT MISMATCH");
+        if (!ok) System.exit(1);
+    }
+
+    private static boolean runPosition(Position position, int maxDepth, boolean parallel) {
+        System.out.println(position.name + (parallel ? " (parallel)" : ""));
+        GameLogic logic = position.setup.get();
+        boolean ok = true;
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            long start = System.nanoTime();
+            long nodes = logic.perft(depth, parallel);
+            long elapsed = Math.max(System.nanoTime() - start, 1);
+            String check = "";
+            if (depth <= position.expected.length) {
+                boolean match = nodes == position.expected[depth - 1];
+                ok &= match;
+                check = match ? "  ok" : "  expected " + position.expected[depth - 1];
+            }
+            System.out.printf("  depth %d  %,14d nodes  %8.3f s  %,12d nps%s%n",
+                    depth, nodes, elapsed / 1e9, nodes * 1_000_000_000L / elapsed, check);
+        }
+        return ok;
+    }
+
+    private static void divide(GameLogic logic, int depth, boolean parallel) {
+        long start = System.nanoTime();
+        long total = 0;
+        for (Map.Entry<String, Long> entry : logic.divide(depth, parallel).entrySet()) {
+            System.out.println(entry.getKey() + ": " + entry.getValue());
+            total += entry.getValue();
+        }
+        long elapsed = Math.max(System.nanoTime() - start, 1);
+        System.out.printf("Total: %d nodes in %.3f s (%,d nps)%n", total, elapsed / 1e9, total * 1_000_000_000L / elapsed);
+    }
+}
+
+/**
+ * TranspositionTable
+ *
+ * Fixed-size table of search results that several search threads can share without
+ * locks. Each entry is two longs, (key ^ data, data); a reader recomputes the key and
+ * treats a mismatch as a miss, so a torn concurrent write never yields a wrong entry.
+ * Data: bits 0-25 move (Move.pack), 26-45 score (signed), 46-53 depth, 54-55 bound,
+ * 56-63 age of the search that wrote it. Entries come in buckets of two; a store
+ * overwrites the same position, otherwise the entry with the lowest depth after an
+ * age penalty, so deep results survive until they are several searches old.
+ */
+final class TranspositionTable {
+    static final int EXACT = 1, LOWER = 2, UPPER = 3; // never 0, so stored data is never 0
+
+    private long[] table;
+    private int bucketMask;
+    private int age;
+
+    TranspositionTable(int megabytes) {
+        resize(megabytes);
+    }
+
+    // Reallocates (and clears) the table; the bucket count is rounded down to a power of two
+    void resize(int megabytes) {
+        long buckets = Math.max(1, megabytes) * (1L << 20) / 32; // 2 entries * 2 longs per bucket
+        int count = (int) Long.highestOneBit(Math.min(buckets, 1 << 28));
+        table = new long[count * 4];
+        bucketMask = count - 1;
+    }
+
+    void clear() {
+        java.util.Arrays.fill(table, 0);
+    }
+
+    // Called once per search so older entries become preferred victims
+    void newSearch() {
+        age = (age + 1) & 0xFF;
+    }
+
+    // Stored data for `key`, or 0 on a miss
+    long probe(long key) {
+        int i = ((int) key & bucketMask) << 2;
+        for (int j = i; j < i + 4; j += 2) {
+            long data = table[j + 1];
+            if (data != 0 && (table[j] ^ data) == key) return data;
+        }
+        return 0;
+    }
+
+    void store(long key, int move, int score, int depth, int bound) {
+        int i = ((int) key & bucketMask) << 2;
+        int victim = i;
+        int lowest = Integer.MAX_VALUE;
+        for (int j = i; j < i + 4; j += 2) {
+            long old = table[j + 1];
+            if (old != 0 && (table[j] ^ old) == key) {
+                if (move == 0) move = move(old); // keep the known best move
+                victim = j;
+                break;
+            }
+            int priority = old == 0 ? Integer.MIN_VALUE : depth(old) - 8 * ((age - age(old)) & 0xFF);
+            if (priority < lowest) {
+                lowest = priority;
+                victim = j;
+            }
+        }
+        long data = (move & 0x3FFFFFFL)
+                  | (long) (score & 0xFFFFF) << 26
+                  | (long) Math.min(depth, 255) << 46
+                  | (long) bound << 54
+                  | (long) age << 56;
+        table[victim] = key ^ data;
+        table[victim + 1] = data;
+    }
+
+    static int move(long data) {
+        return (int) (data & 0x3FFFFFF);
+    }
+
+    static int score(long data) {
+        return (int) (data << 18 >> 44);
+    }
+
+    static int depth(long data) {
+        return (int) (data >>> 46) & 0xFF;
+    }
+
+    static int bound(long data) {
+        return (int) (data >>> 54) & 3;
+    }
+
+    private static int age(long data) {
+        return (int) (data >>> 56) & 0xFF;
+    }
+}
+
+/**
+ * ChessAIController
+ *
+ * External engine controller using the UCI protocol (e.g. Stockfish).
+ * - Process management: start/stop engine process with ProcessBuilder.
+ * - FEN conversion: convert current GameLogic board to FEN string.
+ * - Asynchronous search: run "position fen [FEN]" + "go depth [N]" in a worker thread.
+ * - Result parsing: parse "bestmove [move]" (e.g. e2e4) and convert it to Move.
+ * - Difficulty control: map Skill Level (0-20) to search depth.
+ * - Error handling: handle missing engine binary or crashes and clean up on JVM shutdown.
+ */
+class ChessAIController {
+
+    public interface AIResultListener {
+        void onBestMoveComputed(Move bestMove);
+        void onFailure(Exception e);
+    }
+
+    private final String enginePath;
+    private Process process;
+    private BufferedWriter engineWriter;
+    private BufferedReader engineReader;
+    private final Object ioLock = new Object();
+    private volatile boolean running = false;
+    // Expected reply from the last "bestmove ... ponder <move>", and the running "go ponder"
+    // search (if any) with the hash of the position it expects
+    private volatile String ponderMove;
+    private final java.util.concurrent.atomic.AtomicBoolean pondering = new java.util.concurrent.atomic.AtomicBoolean();
+    private long ponderKey;
+    // All engine reads, and every command that starts or ends a search, run one at a time on this
+    // thread, so a bestmove line is always read by the task that asked for it. The only command
+    // sent from elsewhere is stopSearch's "stop", which reads nothing. searching is set while a
+    // "go" awaits its bestmove.
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Stockfish-Worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean searching = false;
 
     public ChessAIController(String enginePath) throws IOException {
         this.enginePath = enginePath;
         startEngine();
     }
 
-    private void startEngine() throws IOException {
-        File engineFile = new File(enginePath);
-        if (!engineFile.exists() || !engineFile.isFile()) {
-            throw new IOException("Stockfish engine not found at: " + engineFile.getAbsolutePath());
+    private void startEngine() throws IOException {
+        File engineFile = new File(enginePath);
+        if (!engineFile.exists() || !engineFile.isFile()) {
+            throw new IOException("Stockfish engine not found at: " + engineFile.getAbsolutePath());
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(engineFile.getAbsolutePath());
+        pb.redirectErrorStream(true);
+        process = pb.start();
+        running = true;
+
+        engineWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+        engineReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+        // Ensure the engine process is destroyed when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Stockfish-Shutdown"));
+
+        // Initialize UCI
+        sendCommand("uci");
+        readUntilStartsWith("uciok");
+        sendCommand("setoption name Ponder value true");
+        sendCommand("isready");
+        readUntilStartsWith("readyok");
+    }
+
+    private void sendCommand(String cmd) throws IOException {
+        synchronized (ioLock) {
+            if (!running || process == null || !process.isAlive()) {
+                throw new IOException("Engine process is not running");
+            }
+            try {
+                engineWriter.write(cmd);
+                engineWriter.newLine();
+                engineWriter.flush();
+            } catch (IOException e) {
+                // If write fails, assume engine died
+                running = false;
+                throw e;
+            }
+        }
+    }
+
+    private void readUntilStartsWith(String token) throws IOException {
+        String line;
+        while ((line = engineReader.readLine()) != null) {
+            if (line.startsWith(token)) {
+                return;
+            }
+        }
+        throw new IOException("Engine terminated before sending: " + token);
+    }
+
+    /**
+     * Set engine Skill Level (0-20).
+     */
+    public void setSkillLevel(int level) {
+        if (!running) return;
+        int clamped = Math.max(0, Math.min(20, level));
+        try {
+            sendCommand("setoption name Skill Level value " + clamped);
+        } catch (IOException e) {
+            running = false;
+        }
+    }
+
+    /**
+     * Map Skill Level (0-20) to search depth.
+     *
+     * Skill Level  Depth    Difficulty label     Approx Elo   Description
+     * 0           1-2      Beginner             ~800         Blunders frequently.
+     * 5           5        Intermediate         ~1500        Club player.
+     * 10          10       Advanced             ~2200        Strong master.
+     * 15          15       Master               ~2800        Super-GM level.
+     * 20          20+      God-like             3500+        Practically unbeatable.
+     */
+    public static int mapSkillLevelToDepth(int skillLevel) {
+        if (skillLevel <= 0) return 2;
+        if (skillLevel <= 4) return 4;
+        if (skillLevel == 5) return 5;
+        if (skillLevel <= 9) return 8;
+        if (skillLevel == 10) return 10;
+        if (skillLevel <= 14) return 12;
+        if (skillLevel == 15) return 15;
+        if (skillLevel <= 19) return 18;
+        return 22; // Skill 20 and above
+    }
+
+    /**
+     * Asynchronously request best move from the engine using current GameLogic state.
+     * The result is delivered via AIResultListener on a background thread; UI code
+     * should marshal back to Swing's EDT (as done in GameScreen). Cancelling the returned
+     * future drops a request that has not reached the engine yet; stopSearch() ends one
+     * that has, and its listener is still called with the move found so far. The position
+     * is copied up front, so the caller may go on changing `logic` (undo, replay).
+     */
+    public Future<?> requestBestMoveAsync(GameLogic logic, int skillLevel, AIResultListener listener) {
+        if (!running || listener == null) return null;
+        if (logic.getBoardSize() != 8) {
+            listener.onFailure(new IllegalStateException("External engine supports only 8x8 boards."));
+            return null;
+        }
+
+        GameLogic position = logic.copy();
+        return worker.submit(() -> {
+            if (Thread.currentThread().isInterrupted()) return;
+            try {
+                String fen = toFEN(position);
+                int depth = mapSkillLevelToDepth(skillLevel);
+
+                if (position.hash() == ponderKey && pondering.compareAndSet(true, false)) {
+                    // The expected move was played: the ponder search becomes the real one
+                    searching = true;
+                    sendCommand("ponderhit");
+                } else {
+                    finishPondering();
+                    setSkillLevel(skillLevel);
+
+                    synchronized (ioLock) {
+                        sendCommand("position fen " + fen);
+                        sendCommand("go depth " + depth);
+                        searching = true;
+                    }
+                }
+
+                String bestMoveLine = null;
+                String line;
+                while ((line = engineReader.readLine()) != null) {
+                    if (line.startsWith("bestmove")) {
+                        bestMoveLine = line;
+                        break;
+                    }
+                }
+                searching = false;
+
+                if (bestMoveLine == null) {
+                    listener.onFailure(new IOException("Engine did not return bestmove."));
+                    return;
+                }
+
+                String[] parts = bestMoveLine.split("\\s+");
+                if (parts.length < 2 || "0000".equals(parts[1])) {
+                    listener.onFailure(new IOException("Engine returned no legal move."));
+                    return;
+                }
+
+                ponderMove = parts.length >= 4 && "ponder".equals(parts[2]) ? parts[3] : null;
+                String uciMove = parts[1];
+                Move move = uciToMove(uciMove, position);
+                if (move == null) {
+                    listener.onFailure(new IOException("Failed to convert UCI move: " + uciMove));
+                } else {
+                    listener.onBestMoveComputed(move);
+                }
+            } catch (Exception ex) {
+                searching = false;
+                listener.onFailure(ex);
+            }
+        });
+    }
+
+    // UCI "stop": the running search returns its bestmove at once
+    public void stopSearch() {
+        if (!searching) return;
+        try {
+            sendCommand("stop");
+        } catch (IOException e) {
+            running = false;
         }
+    }
 
-        ProcessBuilder pb = new ProcessBuilder(engineFile.getAbsolutePath());
-        pb.redirectErrorStream(true);
-        process = pb.start();
-        running = true;
+    /**
+     * Ponder on the reply the engine expects after its last move ("go ponder"). `logic` is the
+     * position after the engine's move; if the opponent plays the expected reply, the next
+     * requestBestMoveAsync sends "ponderhit" and only waits for the result. Queued on the
+     * engine thread behind any running request; returns at once.
+     */
+    public void startPondering(GameLogic logic, int skillLevel) {
+        if (!running || logic.getBoardSize() != 8) return;
+        GameLogic position = logic.copy();
+        worker.execute(() -> beginPondering(position, skillLevel));
+    }
+
+    private void beginPondering(GameLogic logic, int skillLevel) {
+        String reply = ponderMove;
+        if (!running || pondering.get() || reply == null) return;
+        Move move = uciToMove(reply, logic);
+        if (move == null || logic.getPiece(move.sr, move.sc) == null) return;
+        GameLogic expected = logic.copy();
+        expected.movePiece(move.sr, move.sc, move.tr, move.tc);
+        if (reply.length() > 4) {
+            PieceType promotion = switch (reply.charAt(4)) {
+                case 'r' -> PieceType.ROOK;
+                case 'b' -> PieceType.BISHOP;
+                case 'n' -> PieceType.KNIGHT;
+                default -> PieceType.QUEEN;
+            };
+            expected.promotePiece(move.tr, move.tc, promotion);
+        }
+        try {
+            synchronized (ioLock) {
+                sendCommand("position fen " + toFEN(logic) + " moves " + reply);
+                sendCommand("go ponder depth " + mapSkillLevelToDepth(skillLevel));
+            }
+            ponderKey = expected.hash();
+            pondering.set(true);
+        } catch (IOException e) {
+            running = false;
+        }
+    }
 
-        engineWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-        engineReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    /**
+     * Stop a running ponder search. Queued on the engine thread and returns at once, so it is
+     * safe to call from the EDT; the next request runs only after the search has ended.
+     */
+    public void stopPondering() {
+        if (!running || !pondering.get()) return;
+        worker.execute(this::finishPondering);
+    }
+
+    // On the engine thread: end the ponder search and consume its bestmove line, so it cannot be
+    // taken for the answer to the next request
+    private void finishPondering() {
+        if (!pondering.compareAndSet(true, false)) return;
+        try {
+            sendCommand("stop");
+            readUntilStartsWith("bestmove");
+        } catch (IOException e) {
+            running = false;
+        }
+    }
+
+    /**
+     * Convert current board in GameLogic to a simple FEN string.
+     * Note: castling rights and en-passant are not tracked in this game,
+     * so they are always set to "-" which is acceptable for engine play.
+     */
+    public String toFEN(GameLogic logic) {
+        int size = logic.getBoardSize();
+        if (size != 8) {
+            throw new IllegalStateException("FEN conversion only supports 8x8 boards.");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < 8; r++) {
+            int emptyCount = 0;
+            for (int c = 0; c < 8; c++) {
+                Piece p = logic.getPiece(r, c);
+                if (p == null) {
+                    emptyCount++;
+                } else {
+                    if (emptyCount > 0) {
+                        sb.append(emptyCount);
+                        emptyCount = 0;
+                    }
+                    char ch = switch (p.type) {
+                        case PAWN -> 'p';
+                        case ROOK -> 'r';
+                        case KNIGHT -> 'n';
+                        case BISHOP -> 'b';
+                        case QUEEN -> 'q';
+                        case KING -> 'k';
+                    };
+                    if (p.isWhite) {
+                        ch = Character.toUpperCase(ch);
+                    }
+                    sb.append(ch);
+                }
+            }
+            if (emptyCount > 0) {
+                sb.append(emptyCount);
+            }
+            if (r != 7) {
+                sb.append('/');
+            }
+        }
+
+        // Side to move
+        char side = logic.isWhiteTurn ? 'w' : 'b';
+
+        // No castling, no en passant, zero halfmove clock, fullmove number 1
+        return sb + " " + side + " - - 0 1";
+    }
+
+    /**
+     * Convert a UCI move like "e2e4" or "g7g8q" into an internal Move.
+     * Promotion piece is ignored here; GameLogic will handle promotion.
+     */
+    public Move uciToMove(String uci, GameLogic logic) {
+        if (uci == null || uci.length() < 4) return null;
+        try {
+            int fromFile = uci.charAt(0) - 'a';
+            int fromRank = uci.charAt(1) - '0';
+            int toFile = uci.charAt(2) - 'a';
+            int toRank = uci.charAt(3) - '0';
+
+            // FEN / UCI ranks: '1' is bottom (row 7), '8' is top (row 0)
+            int fromRow = 8 - fromRank;
+            int fromCol = fromFile;
+            int toRow = 8 - toRank;
+            int toCol = toFile;
+
+            int size = logic.getBoardSize();
+            if (fromRow < 0 || fromRow >= size || toRow < 0 || toRow >= size ||
+                fromCol < 0 || fromCol >= size || toCol < 0 || toCol >= size) {
+                return null;
+            }
+
+            return new Move(fromRow, fromCol, toRow, toCol);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scripted exchange with a real engine, to check the ponder protocol end to end:
+     *
+     *   java ChessGame --uci-check <engine path> [skill]
+     *
+     * From the start position (after 1.e4) it asks for a move, ponders, and then answers
+     * with the expected reply (ponderhit), with another reply (stop, then a new search),
+     * and after stopPondering. Each answer must be legal in the position it was asked for,
+     * so a stale bestmove from the abandoned ponder search fails the check.
+     */
+    static void run(String[] args) {
+        if (args.length < 2) {
+            System.err.println("usage: --uci-check <engine path> [skill]");
+            return;
+        }
+        int skill = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        ChessAIController engine;
+        try {
+            engine = new ChessAIController(args[1]);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        GameLogic logic = new GameLogic();
+        logic.movePiece(6, 4, 4, 4); // 1.e4
+        boolean ok = true;
+        try {
+            ok &= checkStep(engine, logic, skill, "first move");
+            // Ponder, then play the expected reply
+            engine.startPondering(logic, skill);
+            Thread.sleep(500);
+            Move expected = engine.uciToMove(engine.ponderMove, logic);
+            if (expected == null) {
+                System.out.println("FAIL engine named no ponder move");
+                ok = false;
+            } else {
+                logic.movePiece(expected.sr, expected.sc, expected.tr, expected.tc);
+                ok &= checkStep(engine, logic, skill, "ponderhit");
+            }
+            // Ponder, then play a reply the engine did not expect
+            engine.startPondering(logic, skill);
+            Thread.sleep(500);
+            GameLogic other = logic.copy();
+            Move surprise = otherReply(other, engine.uciToMove(engine.ponderMove, logic));
+            logic.movePiece(surprise.sr, surprise.sc, surprise.tr, surprise.tc);
+            ok &= checkStep(engine, logic, skill, "ponder miss");
+            // Ponder, stop it from outside, then ask for the next move
+            engine.startPondering(logic, skill);
+            Thread.sleep(500);
+            engine.stopPondering();
+            Move reply = otherReply(logic.copy(), null);
+            logic.movePiece(reply.sr, reply.sc, reply.tr, reply.tc);
+            ok &= checkStep(engine, logic, skill, "after stopPondering");
+        } catch (Exception e) {
+            System.out.println("FAIL " + e);
+            ok = false;
+        } finally {
+            engine.shutdown();
+        }
+        System.out.println(ok ? "uci-check passed" : "uci-check FAILED");
+        if (!ok) System.exit(1);
+    }
+
+    // Ask for Black's move in `logic`, check it is legal there and play it
+    private static boolean checkStep(ChessAIController engine, GameLogic logic, int skill, String name) throws Exception {
+        boolean hit = engine.pondering.get() && logic.hash() == engine.ponderKey;
+        java.util.concurrent.CompletableFuture<Move> result = new java.util.concurrent.CompletableFuture<>();
+        engine.requestBestMoveAsync(logic, skill, new AIResultListener() {
+            @Override
+            public void onBestMoveComputed(Move bestMove) {
+                result.complete(bestMove);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        Move move = result.get(60, java.util.concurrent.TimeUnit.SECONDS);
+        int[] legal = new int[logic.maxMoves()];
+        int count = logic.generateLegalMoves(legal);
+        boolean ok = false;
+        for (int i = 0; i < count && !ok; i++) ok = logic.toMove(legal[i]).toString().equals(move.toString());
+        System.out.printf("%s %-20s %s%s%n", ok ? "ok  " : "FAIL", name, move, hit ? " (ponderhit)" : "");
+        if (ok) logic.movePiece(move.sr, move.sc, move.tr, move.tc);
+        return ok;
+    }
+
+    // A legal move of the side to move other than `avoid`
+    private static Move otherReply(GameLogic logic, Move avoid) {
+        int[] legal = new int[logic.maxMoves()];
+        int count = logic.generateLegalMoves(legal);
+        for (int i = 0; i < count; i++) {
+            Move move = logic.toMove(legal[i]);
+            if (avoid == null || !move.toString().equals(avoid.toString())) return move;
+        }
+        throw new IllegalStateException("no other legal move");
+    }
+
+    public void shutdown() {
+        running = false;
+        worker.shutdownNow();
+        try {
+            if (engineWriter != null) {
+                engineWriter.close();
+            }
+        } catch (IOException ignored) {}
+        try {
+            if (engineReader != null) {
+                engineReader.close();
+            }
+        } catch (IOException ignored) {}
+        if (process != null) {
+            process.destroy();
+        }
+    }
+}
+
+class Move {
+    int sr, sc, tr, tc;
+    public Move(int sr, int sc, int tr, int tc) {
+        this.sr=sr; this.sc=sc; this.tr=tr; this.tc=tc;
+    }
+
+    @Override
+    public String toString() {
+        return sr + "," + sc + "->" + tr + "," + tc;
+    }
+
+    // Packed int form used by GameLogic.generateMoves and the search:
+    // bits 0-10 from, bits 11-21 to (mailbox indices), bits 22-24 promotion
+    // (PieceType ordinal + 1, 0 = none), bit 25 capture.
+    static final int CAPTURE = 1 << 25;
+    private static final PieceType[] TYPES = PieceType.values();
+
+    static int pack(int from, int to, PieceType promotion, boolean capture) {
+        int m = from | (to << 11);
+        if (promotion != null) m |= (promotion.ordinal() + 1) << 22;
+        if (capture) m |= CAPTURE;
+        return m;
+    }
+
+    static int from(int move) {
+        return move & 0x7FF;
+    }
+
+    static int to(int move) {
+        return (move >>> 11) & 0x7FF;
+    }
+
+    // Promotion piece, or null
+    static PieceType promotion(int move) {
+        int p = (move >>> 22) & 7;
+        return p == 0 ? null : TYPES[p - 1];
+    }
+
+    static boolean isCapture(int move) {
+        return (move & CAPTURE) != 0;
+    }
+}
+
+/**
+ * AmusementChessAI
+ *
+ * Lightweight negamax (PVS) AI used only for Amusement mode and non-8x8 boards.
+ * It plays whichever side is to move and uses the same Skill Level -> depth mapping
+ * as the Stockfish controller (as a depth limit under its time budget),
+ * but with an internal evaluation function that favours fun, dynamic play
+ * (center control, pawn advancement, mobility, king safety).
+ */
+class AmusementChessAI {
+    // Mate scores are MATE - ply, so a shorter mate scores higher
+    static final int MATE = 100000;
+    private static final int MATE_BOUND = MATE - 1000;
+    private static final int INFINITY = MATE + 1;
+    // Half-width of the first aspiration window around the previous iteration's score
+    private static final int ASPIRATION_WINDOW = 25;
+    private static final PieceType[] PIECE_TYPES = PieceType.values();
+
+    // Results of earlier searches; size from -Dchess.hashMB (default 32)
+    private final TranspositionTable tt;
+    // Time control shared by all search threads; stopped is raised at the hard deadline or
+    // by the main thread once it has its answer, which also ends the helpers. The deadlines
+    // are volatile because a ponder hit sets them while the search is running.
+    private volatile long softDeadline, hardDeadline;
+    private volatile boolean stopped;
+    // Pondering: background search of the position after the opponent's expected reply, given
+    // up after PONDER_MILLIS so a player who walks away does not keep a core busy
+    private final java.util.concurrent.atomic.AtomicReference<Ponder> ponder = new java.util.concurrent.atomic.AtomicReference<>();
+    private static final long PONDER_MILLIS = 30_000;
+    // Search threads including the calling one (-Dchess.threads, default 1); workers[0] is the
+    // main thread, the rest are Lazy SMP helpers. Workers keep their history between searches.
+    private int threads = Math.max(1, Integer.getInteger("chess.threads", 1));
+    private SearchWorker[] workers = new SearchWorker[0];
+    // Fixed pool of threads - 1 daemon threads running the helpers, created on first use and
+    // replaced when the thread count changes
+    private ExecutorService helperPool;
+    // Deterministic parallel mode (-Dchess.deterministic): instead of Lazy SMP the root moves
+    // after the first are split over SPLIT_TASKS tasks with private tables, so the move chosen
+    // for a position and depth never depends on thread timing
+    private boolean deterministic = Boolean.getBoolean("chess.deterministic");
+    private static final int SPLIT_TASKS = 16;
+    private static final int SPLIT_TABLE_MB = 2;
+    private SearchWorker[] splitWorkers = new SearchWorker[0];
+    // Extra plies the quiescence search may go below the nominal depth
+    private static final int QUIESCENCE_PLIES = 16;
+    // Delta pruning: a capture is skipped if even winning this much more cannot reach alpha
+    private static final int DELTA_MARGIN = 20;
+    // King safety: penalty per enemy attack on the king's square and its neighbours
+    private static final int KING_ZONE_PRESSURE = 3;
+    // Pawn structure (Amusement boards): penalties per doubled / isolated pawn, and a passed
+    // pawn bonus growing from PASSED_PAWN to PASSED_PAWN + PASSED_PAWN_ADVANCE near promotion
+    private static final int DOUBLED_PAWN = 5;
+    private static final int ISOLATED_PAWN = 4;
+    private static final int PASSED_PAWN = 5;
+    private static final int PASSED_PAWN_ADVANCE = 20;
+    // Entries of each worker's evaluation cache and pawn hash table (powers of two)
+    private static final int EVAL_CACHE_SIZE = 1 << 16;
+    private static final int PAWN_CACHE_SIZE = 1 << 14;
+    // Endgame tablebases (8x8) from -Dchess.tb (default "tablebases"), null if none were generated;
+    // probed at the root and at every interior node once the material is covered
+    private Tablebases tablebases = TABLEBASES;
+    private static final Tablebases TABLEBASES = Tablebases.open(Paths.get(System.getProperty("chess.tb", "tablebases")));
+
+    // Selective search, each switchable for benchmarking (-Dchess.search.<name>=false or the setters)
+    private boolean nullMovePruning = searchOption("nullMove");
+    private boolean lateMoveReductions = searchOption("lmr");
+    private boolean futilityPruning = searchOption("futility");
+    private boolean razoring = searchOption("razoring");
+    // Futility / razoring margins per remaining depth (index 0 unused)
+    private static final int[] FUTILITY_MARGIN = {0, 20, 50, 90};
+    private static final int[] RAZOR_MARGIN = {0, 30, 60, 100};
+    // Late move reductions by [depth][move index], both capped at 63
+    private static final int[][] LMR_TABLE = new int[64][64];
+    static {
+        for (int d = 1; d < 64; d++) {
+            for (int m = 1; m < 64; m++) {
+                LMR_TABLE[d][m] = (int) (0.75 + Math.log(d) * Math.log(m) / 2.25);
+            }
+        }
+    }
+
+    public AmusementChessAI() {
+        this(Integer.getInteger("chess.hashMB", 32));
+    }
+
+    public AmusementChessAI(int hashMegabytes) {
+        tt = new TranspositionTable(hashMegabytes);
+    }
+
+    public void setHashSize(int megabytes) {
+        tt.resize(megabytes);
+    }
+
+    public void setThreads(int count) {
+        count = Math.max(1, count);
+        if (count != threads && helperPool != null) {
+            helperPool.shutdown();
+            helperPool = null;
+        }
+        threads = count;
+    }
+
+    // Stop any search and release the helper threads; the instance is not used afterwards
+    public void shutdown() {
+        abort();
+        if (helperPool != null) helperPool.shutdownNow();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setDeterministic(boolean enabled) {
+        deterministic = enabled;
+    }
+
+    public void setTablebases(Tablebases tablebases) {
+        this.tablebases = tablebases;
+    }
+
+    public void setNullMovePruning(boolean enabled) {
+        nullMovePruning = enabled;
+    }
+
+    public void setLateMoveReductions(boolean enabled) {
+        lateMoveReductions = enabled;
+    }
+
+    public void setFutilityPruning(boolean enabled) {
+        futilityPruning = enabled;
+    }
+
+    public void setRazoring(boolean enabled) {
+        razoring = enabled;
+    }
+
+    private static boolean searchOption(String name) {
+        return Boolean.parseBoolean(System.getProperty("chess.search." + name, "true"));
+    }
+
+    // Fixed-depth search without a time limit
+    public Move findBestMove(GameLogic logic, int depth) {
+        return findBestMove(logic, depth, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Iterative deepening up to maxDepth for the side to move (see SearchWorker.iterate) on the
+     * calling thread, with threads - 1 helpers searching copies of the position alongside.
+     * No iteration starts after softMillis and at hardMillis the search is abandoned.
+     * If this is the position being pondered, that search is adopted instead (ponder hit).
+     */
+    public Move findBestMove(GameLogic logic, int maxDepth, long softMillis, long hardMillis) {
+        Ponder previous = ponder.getAndSet(null);
+        if (previous != null) {
+            boolean hit;
+            synchronized (previous) {
+                hit = !previous.cancelled && logic.hash() == previous.key;
+                if (hit) {
+                    // The opponent played the expected move: time the ponder search from when it started;
+                    // if the opponent took longer than our soft limit, answer at once with what it has
+                    previous.hit = true;
+                    softDeadline = deadline(previous.start, softMillis);
+                    hardDeadline = System.nanoTime() >= softDeadline ? 0 : deadline(previous.start, hardMillis);
+                } else {
+                    previous.cancelled = true;
+                }
+            }
+            if (!hit) stopped = true;
+            join(previous.thread);
+            if (hit) return previous.result;
+        }
+        long start = System.nanoTime();
+        softDeadline = deadline(start, softMillis);
+        hardDeadline = deadline(start, hardMillis);
+        stopped = false;
+        return search(logic, maxDepth);
+    }
+
+    /**
+     * Ponder: search the position after the opponent's expected reply on a background thread
+     * until the opponent moves, maxDepth is reached or stopPondering is called. `logic` is the
+     * position after our own move; the expected reply is the table's best move for it.
+     * If the opponent then plays that move, findBestMove takes over the running search and
+     * counts the time already spent, which usually makes the answer immediate; otherwise it
+     * stops the ponder search and starts afresh on a table the pondering has warmed.
+     * Returns at once: an earlier ponder search is stopped and waited for on the new thread.
+     * Must not be called while findBestMove is running.
+     */
+    public void startPondering(GameLogic logic, int maxDepth) {
+        long entry = tt.probe(logic.hash());
+        int reply = entry != 0 ? TranspositionTable.move(entry) : 0;
+        if (reply == 0 || !isLegal(logic, reply)) {
+            stopPondering();
+            return;
+        }
+        GameLogic position = logic.copy();
+        position.makeMove(reply);
+        Ponder next = new Ponder(position.hash());
+        Ponder previous = ponder.getAndSet(next);
+        if (previous != null) previous.cancel();
+        next.thread = new Thread(() -> {
+            if (previous != null) join(previous.thread);
+            synchronized (next) {
+                if (next.cancelled) return;
+                stopped = false;
+                // A ponder hit may already have set the real deadlines
+                if (!next.hit) softDeadline = hardDeadline = deadline(next.start, PONDER_MILLIS);
+            }
+            next.result = search(position, maxDepth);
+        }, "AI-Ponder");
+        next.thread.setDaemon(true);
+        next.thread.start();
+    }
+
+    /**
+     * Cancel from another thread: a running findBestMove returns its best move so far within a
+     * node (interrupting its thread has the same effect within 1024 nodes), and pondering stops.
+     * Only signals, so it is safe to call from the EDT.
+     */
+    public void abort() {
+        stopPondering();
+        stopped = true;
+    }
+
+    // Abandon a running ponder search, if any, without waiting for it: the next search waits
+    public void stopPondering() {
+        Ponder current = ponder.get();
+        if (current != null) current.cancel();
+    }
+
+    /**
+     * One background ponder search. The monitor orders its start against cancel and a ponder
+     * hit, so a search that was cancelled before it began never clears `stopped`, and one that
+     * was hit before it began keeps the deadlines findBestMove set.
+     */
+    private final class Ponder {
+        final long key;
+        final long start = System.nanoTime();
+        Thread thread;
+        boolean cancelled, hit;
+        volatile Move result;
+
+        Ponder(long key) {
+            this.key = key;
+        }
 
-        // Ensure the engine process is destroyed when the JVM exits
-        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Stockfish-Shutdown"));
+        void cancel() {
+            synchronized (this) {
+                if (hit) return;
+                cancelled = true;
+            }
+            stopped = true;
+        }
+    }
 
-        // Initialize UCI
-        sendCommand("uci");
-        readUntilStartsWith("uciok");
-        sendCommand("isready");
-        readUntilStartsWith("readyok");
+    private static boolean isLegal(GameLogic logic, int move) {
+        int[] moves = new int[logic.maxMoves()];
+        int count = logic.generateLegalMoves(moves);
+        for (int i = 0; i < count; i++) {
+            if (moves[i] == move) return true;
+        }
+        return false;
     }
 
-    private void sendCommand(String cmd) throws IOException {
-        synchronized (ioLock) {
-            if (!running || process == null || !process.isAlive()) {
-                throw new IOException("Engine process is not running");
-            }
-            try {
-                engineWriter.write(cmd);
-                engineWriter.newLine();
-                engineWriter.flush();
-            } catch (IOException e) {
-                // If write fails, assume engine died
-                running = false;
-                throw e;
-            }
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    private void readUntilStartsWith(String token) throws IOException {
-        String line;
-        while ((line = engineReader.readLine()) != null) {
-            if (line.startsWith(token)) {
-                return;
+    // Runs one search with the deadlines and stop flag already set up by the caller
+    private Move search(GameLogic logic, int maxDepth) {
+        int workerCount = deterministic ? 1 : threads;
+        if (workers.length != workerCount) {
+            SearchWorker[] resized = java.util.Arrays.copyOf(workers, workerCount);
+            for (int i = workers.length; i < workerCount; i++) resized[i] = new SearchWorker(i, tt);
+            workers = resized;
+        }
+        tt.newSearch();
+        int[] legal = new int[logic.maxMoves()];
+        if (logic.generateLegalMoves(legal) == 0) {
+            if (logic.isInCheck(logic.isWhiteTurn)) return null; // checkmated
+            // Stalemated: the board has no stalemate rule, so a move must be made even though it gives up the king
+            int count = logic.generateMoves(legal);
+            return count == 0 ? null : logic.toMove(legal[0]);
+        }
+        if (tablebases != null) {
+            // The table already knows the outcome: play the move that keeps it best
+            int tableMove = tablebases.bestMove(logic);
+            if (tableMove != 0) return logic.toMove(tableMove);
+        }
+        if (deterministic) {
+            // Start from nothing, so earlier searches cannot change the outcome either
+            if (splitWorkers.length == 0) {
+                splitWorkers = new SearchWorker[SPLIT_TASKS];
+                for (int i = 0; i < SPLIT_TASKS; i++) {
+                    splitWorkers[i] = new SearchWorker(i, new TranspositionTable(SPLIT_TABLE_MB));
+                }
             }
+            tt.clear();
+            workers[0].reset(logic, maxDepth + QUIESCENCE_PLIES);
+            for (SearchWorker worker : splitWorkers) worker.reset(logic, maxDepth + QUIESCENCE_PLIES);
+        } else {
+            splitWorkers = new SearchWorker[0];
         }
-        throw new IOException("Engine terminated before sending: " + token);
+
+        List<Future<?>> helpers = new ArrayList<>(workerCount - 1);
+        if (workerCount > 1 && helperPool == null) {
+            java.util.concurrent.atomic.AtomicInteger created = new java.util.concurrent.atomic.AtomicInteger();
+            helperPool = Executors.newFixedThreadPool(workerCount - 1, r -> {
+                Thread t = new Thread(r, "AI-Helper-" + created.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        for (int i = 1; i < workerCount; i++) {
+            SearchWorker worker = workers[i];
+            GameLogic copy = logic.copy();
+            helpers.add(helperPool.submit(() -> worker.iterate(copy, maxDepth)));
+        }
+        int bestMove;
+        try {
+            bestMove = workers[0].iterate(logic, maxDepth);
+        } finally {
+            // The main thread's answer is final; helpers stop at their next node
+            stopped = true;
+            for (Future<?> helper : helpers) await(helper);
+        }
+        return logic.toMove(bestMove);
     }
 
-    /**
-     * Set engine Skill Level (0-20).
-     */
-    public void setSkillLevel(int level) {
-        if (!running) return;
-        int clamped = Math.max(0, Math.min(20, level));
+    private static void await(Future<?> helper) {
         try {
-            sendCommand("setoption name Skill Level value " + clamped);
-        } catch (IOException e) {
-            running = false;
+            helper.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.util.concurrent.ExecutionException e) {
+            e.getCause().printStackTrace();
         }
     }
 
-    /**
-     * Map Skill Level (0-20) to search depth.
-     *
-     * Skill Level  Depth    Difficulty label     Approx Elo   Description
-     * 0           1-2      Beginner             ~800         Blunders frequently.
-     * 5           5        Intermediate         ~1500        Club player.
-     * 10          10       Advanced             ~2200        Strong master.
-     * 15          15       Master               ~2800        Super-GM level.
-     * 20          20+      God-like             3500+        Practically unbeatable.
-     */
-    public static int mapSkillLevelToDepth(int skillLevel) {
-        if (skillLevel <= 0) return 2;
-        if (skillLevel <= 4) return 4;
-        if (skillLevel == 5) return 5;
-        if (skillLevel <= 9) return 8;
-        if (skillLevel == 10) return 10;
-        if (skillLevel <= 14) return 12;
-        if (skillLevel == 15) return 15;
-        if (skillLevel <= 19) return 18;
-        return 22; // Skill 20 and above
+    // Statistics of the last search: full-width and quiescence nodes summed over all threads,
+    // deepest iteration the main thread completed
+    public long getNodes() {
+        long total = 0;
+        for (SearchWorker worker : workers) total += worker.nodes;
+        for (SearchWorker worker : splitWorkers) total += worker.nodes;
+        return total;
+    }
+
+    public long getQNodes() {
+        long total = 0;
+        for (SearchWorker worker : workers) total += worker.qnodes;
+        for (SearchWorker worker : splitWorkers) total += worker.qnodes;
+        return total;
+    }
+
+    public int getCompletedDepth() {
+        return workers.length == 0 ? 0 : workers[0].completedDepth;
+    }
+
+    // Polled every 1024 nodes: hard deadline passed or the searching thread interrupted (see abort)
+    private boolean shouldStop() {
+        return System.nanoTime() >= hardDeadline || Thread.currentThread().isInterrupted();
     }
 
+    private static long deadline(long start, long millis) {
+        return millis >= Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE : start + millis * 1_000_000;
+    }
+
+    // Ordering bands: hash move, captures / promotions by MVV-LVA, killers, counter-move, then history
+    private static final int HASH_MOVE = 1 << 30;
+    private static final int GOOD_CAPTURE = 1 << 28;
+    private static final int KILLER_1 = 1 << 27;
+    private static final int KILLER_2 = KILLER_1 - 1;
+    private static final int COUNTER = KILLER_1 - 2;
+    private static final int HISTORY_MAX = 1 << 26;
+
     /**
-     * Asynchronously request best move from the engine using current GameLogic state.
-     * The result is delivered via AIResultListener on a background thread; UI code
-     * should marshal back to Swing's EDT (as done in GameScreen).
+     * State of one search thread: move buffers, root ordering, killers, history and counters.
+     * Helper workers (index > 0) start one ply deeper on odd indices so that the threads spread
+     * over neighbouring depths, ignore the soft deadline and run until the main thread stops them.
+     * The main and helper workers share the AI's table; split workers each have their own.
      */
-    public void requestBestMoveAsync(GameLogic logic, int skillLevel, AIResultListener listener) {
-        if (!running || listener == null) return;
-        if (logic.getBoardSize() != 8) {
-            listener.onFailure(new IllegalStateException("External engine supports only 8x8 boards."));
-            return;
+    private final class SearchWorker {
+        private final int index;
+        private final TranspositionTable table;
+        // Per-ply packed move buffers, reused across searches while they are large enough
+        private int[][] moveBuffers = new int[0][0];
+        // Legal-move working arrays lent to every position this worker searches
+        private final GameLogic.Scratch scratch = new GameLogic.Scratch();
+        // Scores of the root moves from the last iteration, used to order the next one
+        private int[] rootScores = new int[0];
+        // Root move that last raised alpha in searchRoot, 0 if none did
+        private int rootBest;
+        // Move-ordering scores, one buffer per ply alongside moveBuffers
+        private int[][] orderScores = new int[0][0];
+        // Two killer moves per ply: quiet moves that caused a cutoff at that ply
+        private int[][] killers = new int[0][2];
+        // Butterfly history [side][from * squares + to] and counter-moves [piece code * squares + to]
+        // of the previous move, sized to the mailbox of the current board
+        private int[] history = new int[0];
+        private int[] counterMoves = new int[0];
+        private int squares;
+        private long nodes, qnodes;
+        private int completedDepth;
+        // Direct-mapped caches kept across searches: evaluateBoard by position key and
+        // pawnStructure by pawn key. Both are pure functions of their key, so nothing is cleared.
+        private final long[] evalKeys = new long[EVAL_CACHE_SIZE];
+        private final int[] evalScores = new int[EVAL_CACHE_SIZE];
+        private final long[] pawnKeys = new long[PAWN_CACHE_SIZE];
+        private final int[] pawnScores = new int[PAWN_CACHE_SIZE];
+        // Per file, padded by an empty file on each side: pawn counts per side, the highest row
+        // holding a white pawn and the lowest holding a black one (White moves toward row 0)
+        private int[][] files = new int[2][0];
+        private int[] whiteMaxRow, blackMinRow;
+
+        SearchWorker(int index, TranspositionTable table) {
+            this.index = index;
+            this.table = table;
         }
 
-        new Thread(() -> {
-            try {
-                String fen = toFEN(logic);
-                int depth = mapSkillLevelToDepth(skillLevel);
+        // Forget what earlier searches learned: history, counter-moves and the table
+        void reset(GameLogic logic, int plies) {
+            ensureBuffers(logic, plies);
+            java.util.Arrays.fill(history, 0);
+            java.util.Arrays.fill(counterMoves, 0);
+            table.clear();
+            nodes = qnodes = 0;
+        }
+
+        /**
+         * Iterative deepening from depth 1 up to maxDepth for the side to move. Each iteration
+         * searches the root moves in the order of the previous iteration's scores, inside an
+         * aspiration window around the previous score that is widened on a fail-low/high.
+         * On the main worker no iteration starts after the soft deadline; at the hard deadline the
+         * running one is abandoned and the best move found so far is returned (the previous
+         * iteration's, or a move this iteration already proved better).
+         */
+        int iterate(GameLogic logic, int maxDepth) {
+            logic.useScratch(scratch);
+            nodes = qnodes = 0;
+            completedDepth = 0;
+            ensureBuffers(logic, maxDepth + QUIESCENCE_PLIES);
+
+            int[] moves = moveBuffers[0];
+            int count = logic.generateLegalMoves(moves);
+            long entry = table.probe(logic.hash());
+            // The first iteration uses the normal ordering; later ones sort by the previous scores
+            scoreMoves(logic, moves, count, 0, entry != 0 ? TranspositionTable.move(entry) : 0);
+            for (int i = 0; i < count; i++) rootScores[i] = orderScores[0][i];
+            sortRootMoves(moves, count);
+
+            int bestMove = moves[0];
+            int score = 0;
+            for (int depth = 1 + (index & 1); depth <= maxDepth; depth++) {
+                int delta = ASPIRATION_WINDOW;
+                int alpha = -INFINITY, beta = INFINITY;
+                if (depth >= 3 && Math.abs(score) < MATE_BOUND) {
+                    alpha = score - delta;
+                    beta = score + delta;
+                }
+                while (true) {
+                    int result = deterministic ? splitRoot(logic, moves, count, depth, alpha, beta)
+                                               : searchRoot(logic, moves, count, depth, alpha, beta);
+                    // A move that raised alpha has been searched completely, even if the search stopped later
+                    if (rootBest != 0) bestMove = rootBest;
+                    if (stopped) break;
+                    if (result <= alpha && alpha > -INFINITY) {
+                        alpha = Math.max(result - delta, -INFINITY);
+                    } else if (result >= beta && beta < INFINITY) {
+                        beta = Math.min(result + delta, INFINITY);
+                    } else {
+                        score = result;
+                        break;
+                    }
+                    delta *= 2;
+                }
+                if (stopped) break;
 
-                setSkillLevel(skillLevel);
+                completedDepth = depth;
+                table.store(logic.hash(), bestMove, score, depth, TranspositionTable.EXACT);
+                sortRootMoves(moves, count);
+                if (Math.abs(score) > MATE_BOUND || (index == 0 && System.nanoTime() >= softDeadline)) break;
+            }
+            return bestMove;
+        }
 
-                synchronized (ioLock) {
-                    sendCommand("position fen " + fen);
-                    sendCommand("go depth " + depth);
+        // Root of one iteration: PVS over the ordered root moves, recording rootScores and rootBest
+        private int searchRoot(GameLogic logic, int[] moves, int count, int depth, int alpha, int beta) {
+            rootBest = 0;
+            int best = -INFINITY;
+            for (int i = 0; i < count; i++) {
+                int move = moves[i];
+                logic.makeMove(move);
+                int score;
+                if (i == 0) {
+                    score = -negamax(logic, depth - 1, 1, -beta, -alpha);
+                } else {
+                    score = -negamax(logic, depth - 1, 1, -alpha - 1, -alpha);
+                    if (score > alpha && score < beta && !stopped) score = -negamax(logic, depth - 1, 1, -beta, -alpha);
+                }
+                logic.undoLastMove();
+                if (stopped) break;
+
+                rootScores[i] = score;
+                if (score > best) {
+                    best = score;
+                    if (score > alpha) {
+                        alpha = score;
+                        rootBest = move;
+                        if (alpha >= beta) break;
+                    }
                 }
+            }
+            return best;
+        }
 
-                String bestMoveLine = null;
-                String line;
-                while ((line = engineReader.readLine()) != null) {
-                    if (line.startsWith("bestmove")) {
-                        bestMoveLine = line;
-                        break;
+        /**
+         * Root of one iteration in deterministic mode, young brothers wait: the first move is
+         * searched here, then the others are split round-robin over the split workers, each on
+         * its own copy and against the same bound (the first move's score), and the results are
+         * merged in move order. Every task's result depends only on its inputs, so the outcome
+         * is the same on any number of cores (for a fixed depth; a deadline still cuts it short).
+         */
+        private int splitRoot(GameLogic logic, int[] moves, int count, int depth, int alpha, int beta) {
+            rootBest = 0;
+            logic.makeMove(moves[0]);
+            int best = -negamax(logic, depth - 1, 1, -beta, -alpha);
+            logic.undoLastMove();
+            if (stopped) return best;
+            rootScores[0] = best;
+            if (best > alpha) {
+                alpha = best;
+                rootBest = moves[0];
+                if (alpha >= beta) return best;
+            }
+
+            int bound = alpha;
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(SPLIT_TASKS);
+            for (int t = 0; t < SPLIT_TASKS && t + 1 < count; t++) {
+                SearchWorker worker = splitWorkers[t];
+                GameLogic copy = logic.copy();
+                int share = t;
+                tasks.add(ForkJoinPool.commonPool().submit(
+                        () -> worker.searchShare(copy, moves, count, share, depth, bound, beta, rootScores)));
+            }
+            for (ForkJoinTask<?> task : tasks) task.join();
+            if (stopped) return best;
+
+            for (int i = 1; i < count; i++) {
+                int score = rootScores[i];
+                if (score > best) {
+                    best = score;
+                    if (score > alpha) {
+                        alpha = score;
+                        rootBest = moves[i];
+                        if (alpha >= beta) break;
                     }
                 }
+            }
+            return best;
+        }
 
-                if (bestMoveLine == null) {
-                    listener.onFailure(new IOException("Engine did not return bestmove."));
-                    return;
+        // Split task: root moves 1 + share, 1 + share + SPLIT_TASKS, ... with PVS against bound
+        private void searchShare(GameLogic logic, int[] moves, int count, int share,
+                                 int depth, int bound, int beta, int[] scores) {
+            logic.useScratch(scratch);
+            for (int i = 1 + share; i < count; i += SPLIT_TASKS) {
+                logic.makeMove(moves[i]);
+                int score = -negamax(logic, depth - 1, 1, -bound - 1, -bound);
+                if (score > bound && score < beta && !stopped) score = -negamax(logic, depth - 1, 1, -beta, -bound);
+                logic.undoLastMove();
+                if (stopped) return;
+                scores[i] = score;
+            }
+        }
+
+        // Stable insertion sort of the root moves by descending rootScores
+        private void sortRootMoves(int[] moves, int count) {
+            for (int i = 1; i < count; i++) {
+                int move = moves[i], score = rootScores[i];
+                int j = i - 1;
+                while (j >= 0 && rootScores[j] < score) {
+                    moves[j + 1] = moves[j];
+                    rootScores[j + 1] = rootScores[j];
+                    j--;
                 }
+                moves[j + 1] = move;
+                rootScores[j + 1] = score;
+            }
+        }
 
-                String[] parts = bestMoveLine.split("\\s+");
-                if (parts.length < 2 || "0000".equals(parts[1])) {
-                    listener.onFailure(new IOException("Engine returned no legal move."));
-                    return;
+        private void ensureBuffers(GameLogic logic, int depth) {
+            int size = logic.maxMoves();
+            if (moveBuffers.length < depth + 1 || moveBuffers[0].length < size) {
+                moveBuffers = new int[depth + 1][size];
+                orderScores = new int[depth + 1][size];
+                killers = new int[depth + 1][2];
+            }
+            if (rootScores.length < size) rootScores = new int[size];
+            for (int[] k : killers) k[0] = k[1] = 0;
+            if (squares != logic.squareCount()) {
+                squares = logic.squareCount();
+                history = new int[2 * squares * squares];
+                counterMoves = new int[16 * squares];
+            } else {
+                // Keep what earlier searches learned, but let the new position outweigh it
+                for (int i = 0; i < history.length; i++) history[i] >>= 1;
+            }
+        }
+
+        // Fill orderScores[ply] for moves[0..count)
+        private void scoreMoves(GameLogic logic, int[] moves, int count, int ply, int hashMove) {
+            int[] scores = orderScores[ply];
+            int side = logic.isWhiteTurn ? 0 : 1;
+            int previous = logic.lastMove();
+            int counter = previous == 0 ? 0
+                    : counterMoves[logic.codeAt(Move.to(previous)) * squares + Move.to(previous)];
+            for (int i = 0; i < count; i++) {
+                int move = moves[i];
+                int from = Move.from(move), to = Move.to(move);
+                if (move == hashMove) {
+                    scores[i] = HASH_MOVE;
+                } else if (Move.isCapture(move) || Move.promotion(move) != null) {
+                    // Most valuable victim first, least valuable attacker as tie-break
+                    int victim = Move.isCapture(move) ? getPieceValue(Piece.typeOf(logic.codeAt(to))) : 0;
+                    PieceType promotion = Move.promotion(move);
+                    if (promotion != null) victim += getPieceValue(promotion);
+                    scores[i] = GOOD_CAPTURE + victim * 100 - getPieceValue(Piece.typeOf(logic.codeAt(from)));
+                } else if (move == killers[ply][0]) {
+                    scores[i] = KILLER_1;
+                } else if (move == killers[ply][1]) {
+                    scores[i] = KILLER_2;
+                } else if (move == counter) {
+                    scores[i] = COUNTER;
+                } else {
+                    scores[i] = history[(side * squares + from) * squares + to];
                 }
+            }
+        }
 
-                String uciMove = parts[1];
-                Move move = uciToMove(uciMove, logic);
-                if (move == null) {
-                    listener.onFailure(new IOException("Failed to convert UCI move: " + uciMove));
+        // Selection step: swap the best-scored move of [i, count) into slot i and return it
+        private int pickNext(int[] moves, int[] scores, int i, int count) {
+            int best = i;
+            for (int j = i + 1; j < count; j++) {
+                if (scores[j] > scores[best]) best = j;
+            }
+            int move = moves[best];
+            moves[best] = moves[i];
+            moves[i] = move;
+            int score = scores[best];
+            scores[best] = scores[i];
+            scores[i] = score;
+            return move;
+        }
+
+        // A quiet move refuted this node: remember it as killer, counter-move and in the history
+        private void onCutoff(GameLogic logic, int move, int ply, int depth) {
+            if (Move.isCapture(move) || Move.promotion(move) != null) return;
+            if (killers[ply][0] != move) {
+                killers[ply][1] = killers[ply][0];
+                killers[ply][0] = move;
+            }
+            int previous = logic.lastMove();
+            if (previous != 0) counterMoves[logic.codeAt(Move.to(previous)) * squares + Move.to(previous)] = move;
+            int side = logic.isWhiteTurn ? 0 : 1;
+            int index = (side * squares + Move.from(move)) * squares + Move.to(move);
+            history[index] += depth * depth;
+            if (history[index] >= HISTORY_MAX) {
+                for (int i = 0; i < history.length; i++) history[i] >>= 1;
+            }
+        }
+
+        /**
+         * Negamax alpha-beta with principal variation search: scores are from the side to
+         * move's point of view, the first move gets the full window and the others a null
+         * window, re-searched only when they land inside (alpha, beta).
+         *
+         * Off the principal variation and out of check the search is selective: razoring drops
+         * into quiescence when the static evaluation is far below alpha near the leaves, a null
+         * move that still fails high cuts the node, quiet moves that cannot reach alpha at the
+         * frontier are skipped (futility), and late quiet moves are searched reduced first.
+         */
+        private int negamax(GameLogic logic, int depth, int ply, int alpha, int beta) {
+            // Depth-0 entries are counted (and polled) once, as quiescence nodes
+            if (depth > 0 && (++nodes & 1023) == 0 && shouldStop()) stopped = true;
+            if (stopped) return 0;
+            if (logic.pieceCount(PieceType.KING, logic.isWhiteTurn) == 0) return ply - MATE; // king taken
+            if (tablebases != null) {
+                int score = tablebases.probe(logic, ply);
+                if (score != Tablebases.UNKNOWN) return score;
+            }
+            if (depth == 0) return quiescence(logic, ply, alpha, beta);
+
+            boolean pvNode = beta - alpha > 1;
+            long key = logic.hash();
+            long entry = table.probe(key);
+            int hashMove = 0;
+            if (entry != 0) {
+                hashMove = TranspositionTable.move(entry);
+                // Bounds are only trusted off the principal variation, so the PV is searched for real
+                if (!pvNode && TranspositionTable.depth(entry) >= depth) {
+                    int score = scoreFromTT(TranspositionTable.score(entry), ply);
+                    int bound = TranspositionTable.bound(entry);
+                    if (bound == TranspositionTable.EXACT
+                            || (bound == TranspositionTable.LOWER && score >= beta)
+                            || (bound == TranspositionTable.UPPER && score <= alpha)) {
+                        return score;
+                    }
+                }
+            }
+
+            int[] moves = moveBuffers[ply];
+            int count = logic.generateLegalMoves(moves);
+            boolean inCheck = logic.isInCheck(logic.isWhiteTurn);
+            if (count == 0) {
+                // No legal moves: checkmate loses for the side to move, and so does stalemate, since
+                // this game has no stalemate rule and any move left would give up the king
+                return ply - MATE;
+            }
+
+            boolean selective = !pvNode && !inCheck && Math.abs(beta) < MATE_BOUND;
+            int staticEval = selective ? evaluate(logic) : 0;
+            if (selective && razoring && depth < RAZOR_MARGIN.length && staticEval + RAZOR_MARGIN[depth] <= alpha) {
+                int score = quiescence(logic, ply, alpha, alpha + 1);
+                if (stopped) return 0;
+                if (score <= alpha) return score;
+            }
+            // Never two null moves in a row (lastMove() is 0 after one), and not with only pawns
+            // left, where passing may be the best move (zugzwang) and the cut would be wrong
+            if (selective && nullMovePruning && depth >= 3 && staticEval >= beta
+                    && logic.lastMove() != 0 && hasPieces(logic, logic.isWhiteTurn)) {
+                int reduction = depth >= 6 ? 3 : 2;
+                logic.makeNullMove();
+                int score = -negamax(logic, Math.max(depth - 1 - reduction, 0), ply + 1, -beta, -beta + 1);
+                logic.undoLastMove();
+                if (stopped) return 0;
+                if (score >= beta) return score > MATE_BOUND ? beta : score;
+            }
+            boolean futile = selective && futilityPruning && depth < FUTILITY_MARGIN.length
+                    && staticEval + FUTILITY_MARGIN[depth] <= alpha;
+
+            int[] scores = orderScores[ply];
+            scoreMoves(logic, moves, count, ply, hashMove);
+
+            int alphaOrig = alpha;
+            int best = -INFINITY, bestMove = 0;
+            for (int i = 0; i < count; i++) {
+                int move = pickNext(moves, scores, i, count);
+                boolean quiet = !Move.isCapture(move) && Move.promotion(move) == null;
+                logic.makeMove(move);
+                boolean givesCheck = logic.isInCheck(logic.isWhiteTurn);
+                if (futile && i > 0 && quiet && !givesCheck) {
+                    logic.undoLastMove();
+                    // The skipped move is assumed to score no more than the futility estimate
+                    best = Math.max(best, staticEval + FUTILITY_MARGIN[depth]);
+                    continue;
+                }
+                int score;
+                if (i == 0) {
+                    score = -negamax(logic, depth - 1, ply + 1, -beta, -alpha);
                 } else {
-                    listener.onBestMoveComputed(move);
+                    int reduction = 0;
+                    if (lateMoveReductions && depth >= 3 && i >= 3 && quiet && !inCheck && !givesCheck
+                            && scores[i] < COUNTER) {
+                        reduction = LMR_TABLE[Math.min(depth, 63)][Math.min(i, 63)];
+                        if (pvNode) reduction--;
+                        reduction = Math.max(0, Math.min(reduction, depth - 2));
+                    }
+                    score = -negamax(logic, depth - 1 - reduction, ply + 1, -alpha - 1, -alpha);
+                    if (reduction > 0 && score > alpha && !stopped) score = -negamax(logic, depth - 1, ply + 1, -alpha - 1, -alpha);
+                    if (score > alpha && score < beta && !stopped) score = -negamax(logic, depth - 1, ply + 1, -beta, -alpha);
+                }
+                logic.undoLastMove();
+                if (stopped) return 0;
+
+                if (score > best) {
+                    best = score;
+                    bestMove = move;
+                    if (score > alpha) {
+                        alpha = score;
+                        if (alpha >= beta) {
+                            onCutoff(logic, move, ply, depth);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            int bound = best <= alphaOrig ? TranspositionTable.UPPER
+                      : best >= beta ? TranspositionTable.LOWER
+                      : TranspositionTable.EXACT;
+            table.store(key, bestMove, scoreToTT(best, ply), depth, bound);
+            return best;
+        }
+
+        /**
+         * Capture-only search below the horizon, so the evaluation is taken only in quiet
+         * positions. The side to move may "stand pat" on the static evaluation instead of
+         * capturing; captures that cannot lift the score to the window even with a margin
+         * are skipped (delta pruning). In check there is no stand-pat and all evasions are tried.
+         */
+        private int quiescence(GameLogic logic, int ply, int alpha, int beta) {
+            if ((++qnodes & 1023) == 0 && shouldStop()) stopped = true;
+            if (stopped) return 0;
+            if (logic.pieceCount(PieceType.KING, logic.isWhiteTurn) == 0) return ply - MATE; // king taken
+
+            if (ply >= moveBuffers.length - 1) return evaluate(logic);
+            boolean inCheck = logic.isInCheck(logic.isWhiteTurn);
+            int[] moves = moveBuffers[ply];
+            int count = inCheck ? logic.generateLegalMoves(moves) : logic.generateLegalCaptures(moves);
+            if (inCheck && count == 0) return ply - MATE;
+
+            int best = -INFINITY, standPat = 0;
+            if (!inCheck) {
+                standPat = evaluate(logic);
+                if (standPat >= beta) return standPat;
+                best = standPat;
+                alpha = Math.max(alpha, standPat);
+            }
+
+            int[] scores = orderScores[ply];
+            scoreMoves(logic, moves, count, ply, 0);
+            for (int i = 0; i < count; i++) {
+                int move = pickNext(moves, scores, i, count);
+                if (!inCheck) {
+                    int gain = DELTA_MARGIN;
+                    if (Move.isCapture(move)) gain += getPieceValue(Piece.typeOf(logic.codeAt(Move.to(move))));
+                    if (Move.promotion(move) != null) gain += getPieceValue(PieceType.QUEEN);
+                    if (standPat + gain <= alpha) continue;
+                }
+                logic.makeMove(move);
+                int score = -quiescence(logic, ply + 1, -beta, -alpha);
+                logic.undoLastMove();
+                if (stopped) return 0;
+                if (score > best) {
+                    best = score;
+                    if (score > alpha) {
+                        alpha = score;
+                        if (alpha >= beta) break;
+                    }
+                }
+            }
+            return best;
+        }
+
+        // Static evaluation from the side to move's point of view, through the caches
+        private int evaluate(GameLogic logic) {
+            long key = logic.hash();
+            int slot = (int) key & (EVAL_CACHE_SIZE - 1);
+            int score;
+            if (evalKeys[slot] == key && key != 0) {
+                score = evalScores[slot];
+            } else {
+                score = evaluateBoard(logic);
+                if (logic.getBoardSize() > 8) score += pawnStructure(logic);
+                evalKeys[slot] = key;
+                evalScores[slot] = score;
+            }
+            return logic.isWhiteTurn ? -score : score;
+        }
+
+        private int pawnStructure(GameLogic logic) {
+            long key = logic.pawnHash();
+            int slot = (int) key & (PAWN_CACHE_SIZE - 1);
+            if (pawnKeys[slot] == key && key != 0) return pawnScores[slot];
+            int score = computePawnStructure(logic);
+            pawnKeys[slot] = key;
+            pawnScores[slot] = score;
+            return score;
+        }
+
+        /**
+         * Pawn-structure terms from Black's point of view: doubled and isolated pawns are
+         * penalised, passed pawns (no enemy pawn ahead on the same or a neighbouring file) earn a
+         * bonus that grows as they advance. Pawn advancement itself is a piece-square term.
+         */
+        private int computePawnStructure(GameLogic logic) {
+            int size = logic.getBoardSize();
+            if (files[0].length != size + 2) {
+                files = new int[2][size + 2];
+                whiteMaxRow = new int[size + 2];
+                blackMinRow = new int[size + 2];
+            }
+            java.util.Arrays.fill(files[0], 0);
+            java.util.Arrays.fill(files[1], 0);
+            java.util.Arrays.fill(whiteMaxRow, -1);
+            java.util.Arrays.fill(blackMinRow, size);
+            int whiteCount = logic.pieceCount(PieceType.PAWN, true), blackCount = logic.pieceCount(PieceType.PAWN, false);
+            for (int i = 0; i < whiteCount; i++) {
+                int square = logic.pieceSquare(PieceType.PAWN, true, i);
+                int file = square % size + 1;
+                files[0][file]++;
+                whiteMaxRow[file] = Math.max(whiteMaxRow[file], square / size);
+            }
+            for (int i = 0; i < blackCount; i++) {
+                int square = logic.pieceSquare(PieceType.PAWN, false, i);
+                int file = square % size + 1;
+                files[1][file]++;
+                blackMinRow[file] = Math.min(blackMinRow[file], square / size);
+            }
+
+            int score = 0;
+            for (int side = 0; side < 2; side++) {
+                boolean isWhite = side == 0;
+                int sign = isWhite ? -1 : 1;
+                int[] own = files[side];
+                for (int file = 1; file <= size; file++) {
+                    if (own[file] > 1) score -= sign * DOUBLED_PAWN * (own[file] - 1);
+                    if (own[file] > 0 && own[file - 1] == 0 && own[file + 1] == 0) score -= sign * ISOLATED_PAWN * own[file];
+                }
+                int count = isWhite ? whiteCount : blackCount;
+                for (int i = 0; i < count; i++) {
+                    int square = logic.pieceSquare(PieceType.PAWN, isWhite, i);
+                    int r = square / size, file = square % size + 1;
+                    boolean passed = true;
+                    for (int f = file - 1; f <= file + 1 && passed; f++) {
+                        // An enemy pawn is ahead if it stands between this pawn and its promotion row
+                        passed = isWhite ? blackMinRow[f] >= r : whiteMaxRow[f] <= r;
+                    }
+                    if (passed) {
+                        int progress = isWhite ? size - 1 - r : r;
+                        score += sign * (PASSED_PAWN + PASSED_PAWN_ADVANCE * progress / (size - 1));
+                    }
                 }
-            } catch (Exception ex) {
-                listener.onFailure(ex);
             }
-        }, "Stockfish-Worker").start();
+            return score;
+        }
+    }
+
+    // True if the side has anything besides king and pawns
+    private static boolean hasPieces(GameLogic logic, boolean white) {
+        return logic.pieceCount(PieceType.KNIGHT, white) + logic.pieceCount(PieceType.BISHOP, white)
+                + logic.pieceCount(PieceType.ROOK, white) + logic.pieceCount(PieceType.QUEEN, white) > 0;
+    }
+
+    // Mate scores are stored relative to the node, not the root, so they stay valid at any ply
+    private static int scoreToTT(int score, int ply) {
+        if (score > MATE_BOUND) return score + ply;
+        if (score < -MATE_BOUND) return score - ply;
+        return score;
+    }
+
+    private static int scoreFromTT(int score, int ply) {
+        if (score > MATE_BOUND) return score - ply;
+        if (score < -MATE_BOUND) return score + ply;
+        return score;
     }
 
     /**
-     * Convert current board in GameLogic to a simple FEN string.
-     * Note: castling rights and en-passant are not tracked in this game,
-     * so they are always set to "-" which is acceptable for engine play.
+     * Static evaluation from Black's point of view (positive = good for Black). Material and
+     * the piece-square terms (center control, pawn advancement) are GameLogic's running
+     * totals, and so on Amusement boards are the attack maps that give mobility and square
+     * control. Only king safety is computed here: friendly pieces around each king and enemy
+     * attacks on its zone.
      */
-    public String toFEN(GameLogic logic) {
-        int size = logic.getBoardSize();
-        if (size != 8) {
-            throw new IllegalStateException("FEN conversion only supports 8x8 boards.");
+    private int evaluateBoard(GameLogic logic) {
+        int score = logic.material(false) - logic.material(true);
+        int boardSize = logic.getBoardSize();
+        boolean isAmusementMode = boardSize > 8;
+
+        if (isAmusementMode) {
+            score += logic.psqScore(false) - logic.psqScore(true);
+            // Mobility: every attacked square counts, with multiplicity
+            score += 2 * (logic.attackTotal(false) - logic.attackTotal(true));
+            // Square control: squares a side attacks more often than the other
+            score -= logic.controlBalance();
+
+            for (int side = 0; side < 2; side++) {
+                boolean isWhite = side == 0;
+                int sign = isWhite ? -1 : 1;
+                for (int i = 0; i < logic.pieceCount(PieceType.KING, isWhite); i++) {
+                    int square = logic.pieceSquare(PieceType.KING, isWhite, i);
+                    int r = square / boardSize, c = square % boardSize;
+                    int safety = getKingSafetyBonus(logic, r, c, isWhite, boardSize)
+                            - KING_ZONE_PRESSURE * logic.zoneAttacks(square, !isWhite);
+                    score += sign * safety;
+                }
+            }
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (int r = 0; r < 8; r++) {
-            int emptyCount = 0;
-            for (int c = 0; c < 8; c++) {
-                Piece p = logic.getPiece(r, c);
-                if (p == null) {
-                    emptyCount++;
-                } else {
-                    if (emptyCount > 0) {
-                        sb.append(emptyCount);
-                        emptyCount = 0;
-                    }
-                    char ch = switch (p.type) {
-                        case PAWN -> 'p';
-                        case ROOK -> 'r';
-                        case KNIGHT -> 'n';
-                        case BISHOP -> 'b';
-                        case QUEEN -> 'q';
-                        case KING -> 'k';
-                    };
-                    if (p.isWhite) {
-                        ch = Character.toUpperCase(ch);
+        // Check bonuses
+        if (logic.isInCheck(true)) { // White in check
+            score += 50;
+        }
+        if (logic.isInCheck(false)) { // Black in check
+            score -= 50;
+        }
+
+        return score;
+    }
+
+    private int getKingSafetyBonus(GameLogic logic, int kingR, int kingC, boolean isWhite, int boardSize) {
+        int safety = 0;
+        for (int dr = -1; dr <= 1; dr++) {
+            for (int dc = -1; dc <= 1; dc++) {
+                if (dr == 0 && dc == 0) continue;
+                int nr = kingR + dr;
+                int nc = kingC + dc;
+                if (nr >= 0 && nr < boardSize && nc >= 0 && nc < boardSize) {
+                    Piece p = logic.getPiece(nr, nc);
+                    if (p != null && p.isWhite == isWhite) {
+                        safety += 3;
                     }
-                    sb.append(ch);
                 }
             }
-            if (emptyCount > 0) {
-                sb.append(emptyCount);
-            }
-            if (r != 7) {
-                sb.append('/');
+        }
+        return safety;
+    }
+
+    private static int getPieceValue(PieceType type) {
+        return EvalTables.VALUE[type.ordinal()];
+    }
+}
+
+/**
+ * Search benchmark for AmusementChessAI: searches a fixed set of positions to a fixed depth
+ * with 1, 2, 4, ... threads and reports time, nodes, nodes per second and the time-to-depth
+ * speedup over one thread. Each run starts from an empty transposition table.
+ *
+ *   java ChessGame --bench [depth] [maxThreads]
+ *
+ * Without a depth every position uses its own default; maxThreads defaults to the number of
+ * available processors.
+ */
+final class SearchBench {
+    private static final String[] NAMES = {"8x8 start", "Kiwipete", "16x16 Amusement start", "32x32 Amusement start"};
+    private static final int[] DEFAULT_DEPTHS = {10, 8, 7, 6};
+
+    private SearchBench() {}
+
+    private static GameLogic position(int i) {
+        GameLogic logic = new GameLogic();
+        switch (i) {
+            case 1 -> logic = GameLogic.fromFEN("r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w");
+            case 2 -> logic.resetAmusementBoard(2);
+            case 3 -> logic.resetAmusementBoard(4);
+            default -> { }
+        }
+        return logic;
+    }
+
+    static void run(String[] args) {
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : -1;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        System.out.printf("%-8s %10s %12s %10s %8s%n", "threads", "ms", "nodes", "knps", "speedup");
+        long baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long nanos = 0, nodes = 0;
+            for (int i = 0; i < NAMES.length; i++) {
+                AmusementChessAI ai = new AmusementChessAI();
+                ai.setThreads(threads);
+                GameLogic logic = position(i);
+                long start = System.nanoTime();
+                Move move = ai.findBestMove(logic, depth < 0 ? DEFAULT_DEPTHS[i] : depth);
+                long elapsed = System.nanoTime() - start;
+                ai.shutdown();
+                nanos += elapsed;
+                nodes += ai.getNodes() + ai.getQNodes();
+                if (threads == 1) {
+                    System.out.printf("  %-24s %s  %d ms%n", NAMES[i], move, elapsed / 1_000_000);
+                }
             }
+            if (threads == 1) baseline = nanos;
+            System.out.printf("%-8d %10d %12d %10d %8.2f%n", threads, nanos / 1_000_000, nodes,
+                    nodes * 1_000_000 / Math.max(nanos, 1), (double) baseline / nanos);
         }
+    }
+}
 
-        // Side to move
-        char side = logic.isWhiteTurn ? 'w' : 'b';
+/**
+ * Opening book for the 8x8 board in the style of Polyglot: a file of 16-byte big-endian
+ * entries sorted by unsigned key, read through a MappedByteBuffer with binary search.
+ *
+ *   key    u64  GameLogic.hash() of the position (this game's Zobrist keys, so Polyglot
+ *                books from elsewhere are not compatible)
+ *   move   u16  bits 0-5 to, 6-11 from (row * 8 + col, row 0 = Black's back rank),
+ *                bits 12-14 promotion (0 none, 1 knight, 2 bishop, 3 rook, 4 queen)
+ *   weight u16  relative frequency of the move; entries of a key are stored heaviest first
+ *   learn  u32  unused, 0
+ *
+ * Books are compiled from PGN collections (there is no castling or en passant here, so a
+ * game is used up to its first move this rules set cannot play):
+ *
+ *   java ChessGame --book-build <out.bin> <games.pgn>... [--plies N] [--min-games N]
+ */
+final class OpeningBook {
+    private static final int ENTRY_SIZE = 16;
+    private static final PieceType[] PROMOTIONS = {null, PieceType.KNIGHT, PieceType.BISHOP, PieceType.ROOK, PieceType.QUEEN};
 
-        // No castling, no en passant, zero halfmove clock, fullmove number 1
-        return sb + " " + side + " - - 0 1";
+    private final MappedByteBuffer entries;
+    private final int count;
+
+    private OpeningBook(MappedByteBuffer entries) {
+        this.entries = entries;
+        this.count = entries.capacity() / ENTRY_SIZE;
+    }
+
+    // Map a book file; null if it does not exist or cannot be read
+    static OpeningBook open(Path path) {
+        if (!java.nio.file.Files.isRegularFile(path)) return null;
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path)) {
+            return new OpeningBook(channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            System.err.println("Failed to open opening book " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int size() {
+        return count;
     }
 
     /**
-     * Convert a UCI move like "e2e4" or "g7g8q" into an internal Move.
-     * Promotion piece is ignored here; GameLogic will handle promotion.
+     * A book move for the position, chosen at random in proportion to the weights among
+     * those legal here; null if the position is not in the book (or not 8x8).
      */
-    public Move uciToMove(String uci, GameLogic logic) {
-        if (uci == null || uci.length() < 4) return null;
+    public Move probe(GameLogic logic, Random random) {
+        if (logic.getBoardSize() != 8) return null;
+        long key = logic.hash();
+        // Lower bound of key among the unsigned-sorted entries
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(entries.getLong(mid * ENTRY_SIZE), key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        int[] legal = new int[logic.maxMoves()];
+        int legalCount = logic.generateLegalMoves(legal);
+        List<Integer> moves = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int total = 0;
+        for (int i = lo; i < count && entries.getLong(i * ENTRY_SIZE) == key; i++) {
+            int move = find(logic, legal, legalCount, entries.getShort(i * ENTRY_SIZE + 8) & 0xFFFF);
+            int weight = entries.getShort(i * ENTRY_SIZE + 10) & 0xFFFF;
+            if (move == 0 || weight == 0) continue;
+            moves.add(move);
+            weights.add(weight);
+            total += weight;
+        }
+        if (total == 0) return null;
+        int pick = random.nextInt(total);
+        for (int i = 0; i < moves.size(); i++) {
+            pick -= weights.get(i);
+            if (pick < 0) return logic.toMove(moves.get(i));
+        }
+        return null;
+    }
+
+    // The legal packed move with this book encoding, 0 if none
+    private static int find(GameLogic logic, int[] legal, int legalCount, int bookMove) {
+        for (int i = 0; i < legalCount; i++) {
+            if (encode(logic, legal[i]) == bookMove) return legal[i];
+        }
+        return 0;
+    }
+
+    private static int encode(GameLogic logic, int move) {
+        Move m = logic.toMove(move);
+        PieceType promotion = Move.promotion(move);
+        int promo = promotion == null ? 0 : java.util.Arrays.asList(PROMOTIONS).indexOf(promotion);
+        return (m.tr * 8 + m.tc) | (m.sr * 8 + m.sc) << 6 | promo << 12;
+    }
+
+    // ---- Builder ----
+
+    static void run(String[] args) {
+        List<String> files = new ArrayList<>();
+        int plies = 16, minGames = 1;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--plies") && i + 1 < args.length) plies = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--min-games") && i + 1 < args.length) minGames = Integer.parseInt(args[++i]);
+            else files.add(args[i]);
+        }
+        if (files.size() < 2) {
+            System.err.println("Usage: java ChessGame --book-build <out.bin> <games.pgn>... [--plies N] [--min-games N]");
+            System.exit(2);
+        }
         try {
-            int fromFile = uci.charAt(0) - 'a';
-            int fromRank = uci.charAt(1) - '0';
-            int toFile = uci.charAt(2) - 'a';
-            int toRank = uci.charAt(3) - '0';
+            Path out = Paths.get(files.get(0));
+            List<Path> pgns = new ArrayList<>();
+            for (String file : files.subList(1, files.size())) pgns.add(Paths.get(file));
+            build(pgns, out, plies, minGames);
+        } catch (IOException e) {
+            System.err.println("Book build failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 
-            // FEN / UCI ranks: '1' is bottom (row 7), '8' is top (row 0)
-            int fromRow = 8 - fromRank;
-            int fromCol = fromFile;
-            int toRow = 8 - toRank;
-            int toCol = toFile;
+    /**
+     * Replay the first `plies` plies of every game and count each (position, move) pair.
+     * A move earns 2 points per win and 1 per draw for the side that played it (1 when the
+     * result is unknown); pairs seen in fewer than minGames games are dropped.
+     */
+    static void build(List<Path> pgns, Path out, int plies, int minGames) throws IOException {
+        // (key, book move) -> {games, points}
+        Map<Long, Map<Integer, int[]>> stats = new java.util.HashMap<>();
+        int games = 0, usedPlies = 0;
+        for (Path pgn : pgns) {
+            for (PgnGame game : readGames(pgn)) {
+                games++;
+                GameLogic logic = new GameLogic();
+                int[] legal = new int[logic.maxMoves()];
+                for (int ply = 0; ply < Math.min(plies, game.moves.size()); ply++) {
+                    int move = parseSan(logic, game.moves.get(ply), legal);
+                    if (move == 0) break; // castling, en passant or a broken game
+                    int[] entry = stats.computeIfAbsent(logic.hash(), k -> new java.util.HashMap<>())
+                                       .computeIfAbsent(encode(logic, move), k -> new int[2]);
+                    entry[0]++;
+                    entry[1] += game.points(logic.isWhiteTurn);
+                    logic.makeMove(move);
+                    usedPlies++;
+                }
+            }
+        }
 
-            int size = logic.getBoardSize();
-            if (fromRow < 0 || fromRow >= size || toRow < 0 || toRow >= size ||
-                fromCol < 0 || fromCol >= size || toCol < 0 || toCol >= size) {
-                return null;
+        List<long[]> rows = new ArrayList<>();
+        for (Map.Entry<Long, Map<Integer, int[]>> position : stats.entrySet()) {
+            for (Map.Entry<Integer, int[]> move : position.getValue().entrySet()) {
+                int[] entry = move.getValue();
+                if (entry[0] < minGames || entry[1] == 0) continue;
+                rows.add(new long[] {position.getKey(), move.getKey(), entry[1]});
+            }
+        }
+        // Heaviest first within a key; scale weights down together if one exceeds u16
+        rows.sort((a, b) -> a[0] != b[0] ? Long.compareUnsigned(a[0], b[0]) : Long.compare(b[2], a[2]));
+        long maxWeight = 1;
+        for (long[] row : rows) maxWeight = Math.max(maxWeight, row[2]);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(java.nio.file.Files.newOutputStream(out)))) {
+            for (long[] row : rows) {
+                long weight = maxWeight <= 0xFFFF ? row[2] : Math.max(1, row[2] * 0xFFFF / maxWeight);
+                output.writeLong(row[0]);
+                output.writeShort((int) row[1]);
+                output.writeShort((int) weight);
+                output.writeInt(0);
             }
+        }
+        System.out.printf("%d games, %d plies replayed, %d positions, %d entries -> %s%n",
+                games, usedPlies, stats.size(), rows.size(), out);
+    }
 
-            return new Move(fromRow, fromCol, toRow, toCol);
-        } catch (Exception e) {
-            return null;
+    private static final class PgnGame {
+        final List<String> moves = new ArrayList<>();
+        String result = "*";
+
+        // Points for the side to move: 2 win, 1 draw, 0 loss; 1 if the result is unknown
+        int points(boolean white) {
+            return switch (result) {
+                case "1-0" -> white ? 2 : 0;
+                case "0-1" -> white ? 0 : 2;
+                default -> 1;
+            };
         }
     }
 
-    public void shutdown() {
-        running = false;
-        try {
-            if (engineWriter != null) {
-                engineWriter.close();
+    // Movetext of every game in the file: tags, comments, variations, NAGs and move numbers removed
+    private static List<PgnGame> readGames(Path pgn) throws IOException {
+        List<PgnGame> games = new ArrayList<>();
+        PgnGame game = null;
+        boolean skip = false; // game from a custom position ([FEN] / [SetUp])
+        int depth = 0;        // nesting of ( ) variations
+        boolean comment = false;
+        for (String line : java.nio.file.Files.readAllLines(pgn, java.nio.charset.StandardCharsets.ISO_8859_1)) {
+            String trimmed = line.trim();
+            if (!comment && depth == 0 && trimmed.startsWith("[")) {
+                if (game != null && !game.moves.isEmpty()) {
+                    if (!skip) games.add(game);
+                    game = null;
+                    skip = false;
+                }
+                if (game == null) game = new PgnGame();
+                if (trimmed.startsWith("[FEN ") || trimmed.startsWith("[SetUp \"1")) skip = true;
+                if (trimmed.startsWith("[Result \"")) game.result = trimmed.substring(9, trimmed.indexOf('"', 9));
+                continue;
             }
-        } catch (IOException ignored) {}
-        try {
-            if (engineReader != null) {
-                engineReader.close();
+            if (trimmed.startsWith("%")) continue;
+            if (game == null) game = new PgnGame();
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i <= line.length(); i++) {
+                char ch = i < line.length() ? line.charAt(i) : ' ';
+                if (comment) {
+                    if (ch == '}') comment = false;
+                    continue;
+                }
+                if (ch == ';') break; // rest-of-line comment
+                if (ch == '{' || ch == '(' || ch == ')' || Character.isWhitespace(ch)) {
+                    if (token.length() > 0 && depth == 0) addToken(game, token.toString());
+                    token.setLength(0);
+                    if (ch == '{') comment = true;
+                    else if (ch == '(') depth++;
+                    else if (ch == ')') depth = Math.max(0, depth - 1);
+                    continue;
+                }
+                token.append(ch);
             }
-        } catch (IOException ignored) {}
-        if (process != null) {
-            process.destroy();
         }
+        if (game != null && !game.moves.isEmpty() && !skip) games.add(game);
+        return games;
     }
-}
 
-class Move {
-    int sr, sc, tr, tc;
-    public Move(int sr, int sc, int tr, int tc) {
-        this.sr=sr; this.sc=sc; this.tr=tr; this.tc=tc;
+    private static void addToken(PgnGame game, String token) {
+        if (token.startsWith("$")) return;
+        if (token.equals("1-0") || token.equals("0-1") || token.equals("1/2-1/2") || token.equals("*")) {
+            game.result = token;
+            return;
+        }
+        // Strip a leading move number ("12." / "12...")
+        int i = 0;
+        while (i < token.length() && Character.isDigit(token.charAt(i))) i++;
+        if (i > 0 && i < token.length() && token.charAt(i) == '.') {
+            while (i < token.length() && token.charAt(i) == '.') i++;
+            token = token.substring(i);
+        } else if (i == token.length()) {
+            return;
+        }
+        if (!token.isEmpty()) game.moves.add(token);
+    }
+
+    /**
+     * The legal move a SAN token (e.g. "Nbd7", "exd5", "e8=Q+") denotes, 0 if none does.
+     * Castling never matches since it is not part of this game.
+     */
+    static int parseSan(GameLogic logic, String san, int[] legal) {
+        san = san.replaceAll("[+#!?]", "");
+        if (san.startsWith("O-O") || san.startsWith("0-0") || san.length() < 2) return 0;
+        PieceType promotion = null;
+        int eq = san.indexOf('=');
+        if (eq >= 0 && eq + 1 < san.length()) {
+            promotion = pieceOf(san.charAt(eq + 1));
+            san = san.substring(0, eq);
+        } else if (Character.isUpperCase(san.charAt(san.length() - 1)) && san.length() > 2) {
+            promotion = pieceOf(san.charAt(san.length() - 1)); // "e8Q"
+            san = san.substring(0, san.length() - 1);
+        }
+        PieceType type = PieceType.PAWN;
+        if (Character.isUpperCase(san.charAt(0))) {
+            type = pieceOf(san.charAt(0));
+            san = san.substring(1);
+        }
+        san = san.replace("x", "").replace("-", "");
+        if (type == null || san.length() < 2) return 0;
+        int toCol = san.charAt(san.length() - 2) - 'a';
+        int toRow = 8 - (san.charAt(san.length() - 1) - '0');
+        String hint = san.substring(0, san.length() - 2); // disambiguation: file, rank or both
+        int count = logic.generateLegalMoves(legal);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int move = legal[i];
+            Move m = logic.toMove(move);
+            if (m.tr != toRow || m.tc != toCol) continue;
+            if (Piece.typeOf(logic.codeAt(Move.from(move))) != type) continue;
+            if (Move.promotion(move) != promotion) continue;
+            boolean matches = true;
+            for (char ch : hint.toCharArray()) {
+                if (ch >= 'a' && ch <= 'h') matches &= m.sc == ch - 'a';
+                else if (ch >= '1' && ch <= '8') matches &= m.sr == 8 - (ch - '0');
+            }
+            if (!matches) continue;
+            if (found != 0) return 0; // ambiguous
+            found = move;
+        }
+        return found;
+    }
+
+    private static PieceType pieceOf(char ch) {
+        return switch (ch) {
+            case 'N' -> PieceType.KNIGHT;
+            case 'B' -> PieceType.BISHOP;
+            case 'R' -> PieceType.ROOK;
+            case 'Q' -> PieceType.QUEEN;
+            case 'K' -> PieceType.KING;
+            default -> null;
+        };
     }
 }
 
 /**
- * AmusementChessAI
+ * Endgame tablebases for king and one piece against a bare king on the 8x8 board
+ * (KQK, KRK, KPK), generated locally by retrograde analysis:
  *
- * Lightweight minimax-based AI used only for Amusement mode and non-8x8 boards.
- * It uses the same Skill Level -> depth mapping as the Stockfish controller,
- * but with an internal evaluation function that favours fun, dynamic play
- * (center control, pawn advancement, mobility, king safety).
+ *   java ChessGame --tb-build [dir] [threads]     (dir defaults to "tablebases")
+ *
+ * Each table is a file of one byte per position, read through a MappedByteBuffer. Positions
+ * are stored with the stronger side as White (a black piece is mirrored top to bottom) and
+ * indexed by side to move (0 = the stronger side), the two kings and the piece:
+ *
+ *   index = stm << 18 | strongKing << 12 | weakKing << 6 | piece     (squares row * 8 + col)
+ *
+ * A byte of 0 is a draw, 0xFF an illegal position (the side to move could take the king),
+ * any other odd value v means the side to move mates in v plies and an even value v >= 2 that it is mated in v - 2 plies. There are no fifty-move
+ * or repetition rules here, so distance to mate is exact. Like the move generator, KPK only
+ * promotes to a queen. Bare kings and a lone minor piece are draws and need no table.
  */
-class AmusementChessAI {
-
-    public Move findBestMove(GameLogic logic, int depth) {
-        // AI always plays Black (false) in this game design.
-        java.util.List<Move> allMoves = generateAllMoves(logic, false);
-        if (allMoves.isEmpty()) return null;
-
-        Move bestMove = null;
-        int maxEval = Integer.MIN_VALUE;
-        int alpha = Integer.MIN_VALUE;
-        int beta = Integer.MAX_VALUE;
-
-        for (Move move : allMoves) {
-            Piece captured = logic.movePiece(move.sr, move.sc, move.tr, move.tc);
-            int eval = minimax(logic, depth - 1, alpha, beta);
-            logic.undoMove(move.sr, move.sc, move.tr, move.tc, captured);
-
-            if (eval > maxEval) {
-                maxEval = eval;
-                bestMove = move;
+final class Tablebases {
+    // Returned by probe for positions no table covers
+    static final int UNKNOWN = Integer.MIN_VALUE;
+    static final PieceType[] COVERED = {PieceType.QUEEN, PieceType.ROOK, PieceType.PAWN};
+    private static final int SIZE = 1 << 19;
+    private static final int ILLEGAL = 0xFF;
+    private static final int[][] KING_STEPS = {{-1, -1}, {-1, 0}, {-1, 1}, {0, -1}, {0, 1}, {1, -1}, {1, 0}, {1, 1}};
+    private static final int[][] ROOK_STEPS = {{-1, 0}, {1, 0}, {0, -1}, {0, 1}};
+
+    // Indexed by PieceType ordinal; null where no table is loaded
+    private final ByteBuffer[] tables = new ByteBuffer[PieceType.values().length];
+
+    private Tablebases() {
+    }
+
+    /** Map the tables found in dir; null if there are none. */
+    static Tablebases open(Path dir) {
+        Tablebases tablebases = new Tablebases();
+        boolean any = false;
+        for (PieceType type : COVERED) {
+            Path file = dir.resolve(fileName(type));
+            if (!java.nio.file.Files.isRegularFile(file)) continue;
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file)) {
+                if (channel.size() != SIZE) {
+                    System.err.println("Ignoring tablebase " + file + ": unexpected size " + channel.size());
+                    continue;
+                }
+                tablebases.tables[type.ordinal()] = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, SIZE);
+                any = true;
+            } catch (IOException e) {
+                System.err.println("Failed to open tablebase " + file + ": " + e.getMessage());
             }
-            alpha = Math.max(alpha, eval);
-            if (beta <= alpha) break;
         }
-        return bestMove;
+        return any ? tablebases : null;
     }
 
-    private int minimax(GameLogic logic, int depth, int alpha, int beta) {
-        if (depth == 0) return evaluateBoard(logic);
+    private static String fileName(PieceType type) {
+        return "K" + pieceLetter(type) + "K.tb";
+    }
 
-        boolean isWhiteTurn = logic.isWhiteTurn;
-        java.util.List<Move> moves = generateAllMoves(logic, isWhiteTurn);
-        if (moves.isEmpty()) {
-            // No legal moves: treat as losing position for the side to move.
-            return isWhiteTurn ? Integer.MAX_VALUE / -2 : Integer.MAX_VALUE / 2;
-        }
+    private static char pieceLetter(PieceType type) {
+        return switch (type) {
+            case QUEEN -> 'Q';
+            case ROOK -> 'R';
+            case PAWN -> 'P';
+            default -> throw new IllegalArgumentException(type.toString());
+        };
+    }
 
-        if (isWhiteTurn) {
-            // White is the human side -> minimizing player.
-            int minEval = Integer.MAX_VALUE;
-            for (Move move : moves) {
-                Piece captured = logic.movePiece(move.sr, move.sc, move.tr, move.tc);
-                int eval = minimax(logic, depth - 1, alpha, beta);
-                logic.undoMove(move.sr, move.sc, move.tr, move.tc, captured);
-                minEval = Math.min(minEval, eval);
-                beta = Math.min(beta, eval);
-                if (beta <= alpha) break;
+    /**
+     * Search score of the position for the side to move, with mates counted from the root
+     * (MATE - ply - plies to mate, as in AmusementChessAI), or UNKNOWN if the material is not
+     * covered. Cheap to call at every node: most positions are rejected by the phase alone.
+     */
+    int probe(GameLogic logic, int ply) {
+        if (logic.getBoardSize() != 8 || logic.phase() > EvalTables.PHASE[PieceType.QUEEN.ordinal()]) return UNKNOWN;
+        // A king can be taken in this game (the player may leave theirs en prise); such positions are not covered
+        if (logic.pieceCount(PieceType.KING, true) != 1 || logic.pieceCount(PieceType.KING, false) != 1) return UNKNOWN;
+        PieceType piece = null;
+        boolean whiteStrong = false;
+        for (int t = 0; t < PieceType.KING.ordinal(); t++) {
+            PieceType type = PieceType.values()[t];
+            for (int side = 0; side < 2; side++) {
+                int count = logic.pieceCount(type, side == 0);
+                if (count == 0) continue;
+                if (count > 1 || piece != null) return UNKNOWN;
+                piece = type;
+                whiteStrong = side == 0;
             }
-            return minEval;
-        } else {
-            // Black is the AI side -> maximizing player.
-            int maxEval = Integer.MIN_VALUE;
-            for (Move move : moves) {
-                Piece captured = logic.movePiece(move.sr, move.sc, move.tr, move.tc);
-                int eval = minimax(logic, depth - 1, alpha, beta);
-                logic.undoMove(move.sr, move.sc, move.tr, move.tc, captured);
-                maxEval = Math.max(maxEval, eval);
-                alpha = Math.max(alpha, eval);
-                if (beta <= alpha) break;
+        }
+        if (piece == null || piece == PieceType.KNIGHT || piece == PieceType.BISHOP) return 0;
+        ByteBuffer table = tables[piece.ordinal()];
+        if (table == null) return UNKNOWN;
+        // Mirror so that the stronger side is White
+        int flip = whiteStrong ? 0 : 56;
+        int stm = logic.isWhiteTurn == whiteStrong ? 0 : 1;
+        int index = stm << 18
+                | (logic.pieceSquare(PieceType.KING, whiteStrong, 0) ^ flip) << 12
+                | (logic.pieceSquare(PieceType.KING, !whiteStrong, 0) ^ flip) << 6
+                | (logic.pieceSquare(piece, whiteStrong, 0) ^ flip);
+        int value = table.get(index) & 0xFF;
+        if (value == 0) return 0;
+        if (value == ILLEGAL) return UNKNOWN;
+        return (value & 1) != 0 ? AmusementChessAI.MATE - ply - value : ply + value - 2 - AmusementChessAI.MATE;
+    }
+
+    /** The legal move with the best table score, 0 if the position is not covered. */
+    int bestMove(GameLogic logic) {
+        if (probe(logic, 0) == UNKNOWN) return 0;
+        int[] moves = new int[logic.maxMoves()];
+        int count = logic.generateLegalMoves(moves);
+        int best = 0, bestScore = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            logic.makeMove(moves[i]);
+            int score = probe(logic, 1);
+            logic.undoLastMove();
+            if (score == UNKNOWN) return 0; // e.g. promotion into a table that is not loaded
+            if (-score > bestScore) {
+                bestScore = -score;
+                best = moves[i];
             }
-            return maxEval;
         }
+        return best;
     }
 
-    private int evaluateBoard(GameLogic logic) {
-        int score = 0;
-        int boardSize = logic.getBoardSize();
-        boolean isAmusementMode = boardSize > 8;
-
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = logic.getPiece(r, c);
-                if (p != null) {
-                    int val = getPieceValue(p.type);
-
-                    // Base material value
-                    if (!p.isWhite) score += val;
-                    else score -= val;
-
-                    if (isAmusementMode) {
-                        // 1. Center control bonus
-                        int centerBonus = getCenterControlBonus(r, c, boardSize);
-                        if (!p.isWhite) score += centerBonus;
-                        else score -= centerBonus;
-
-                        // 2. Pawn advancement bonus
-                        if (p.type == PieceType.PAWN) {
-                            int pawnAdvanceBonus = getPawnAdvanceBonus(r, p.isWhite, boardSize);
-                            if (!p.isWhite) score += pawnAdvanceBonus;
-                            else score -= pawnAdvanceBonus;
-                        }
+    // ---- Generation ----
 
-                        // 3. Mobility bonus
-                        int mobility = logic.getValidMoves(r, c).size();
-                        int mobilityBonus = mobility * 2;
-                        if (!p.isWhite) score += mobilityBonus;
-                        else score -= mobilityBonus;
-
-                        // 4. King safety
-                        if (p.type == PieceType.KING) {
-                            int safetyBonus = getKingSafetyBonus(logic, r, c, p.isWhite, boardSize);
-                            if (!p.isWhite) score += safetyBonus;
-                            else score -= safetyBonus;
-                        }
+    static void run(String[] args) {
+        Path dir = Paths.get(args.length > 1 ? args[1] : "tablebases");
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        try {
+            java.nio.file.Files.createDirectories(dir);
+            byte[][] built = new byte[PieceType.values().length][];
+            // KPK promotes into KQK, so it comes last
+            for (PieceType type : COVERED) {
+                long start = System.nanoTime();
+                byte[] table = new Generator(type, built, threads).generate();
+                built[type.ordinal()] = table;
+                java.nio.file.Files.write(dir.resolve(fileName(type)), table);
+                int wins = 0, longest = 0;
+                for (int i = 0; i < SIZE / 2; i++) {
+                    int value = table[i] & 0xFF;
+                    if ((value & 1) != 0 && value != ILLEGAL) {
+                        wins++;
+                        longest = Math.max(longest, value);
                     }
                 }
+                System.out.printf("%s: %d wins with the stronger side to move, longest mate %d plies, %d ms%n",
+                        fileName(type), wins, longest, (System.nanoTime() - start) / 1_000_000);
             }
+        } catch (IOException e) {
+            System.err.println("Tablebase generation failed: " + e.getMessage());
+            System.exit(1);
         }
+    }
 
-        // Check bonuses
-        if (logic.isInCheck(true)) { // White in check
-            score += 50;
-        }
-        if (logic.isInCheck(false)) { // Black in check
-            score -= 50;
+    /**
+     * Retrograde analysis by repeated sweeps: on odd sweep n every unresolved position with a
+     * move into a loss in n - 1 plies becomes a win in n, on even sweep n every unresolved
+     * position whose moves all lead to wins for the opponent becomes a loss in n. A sweep only
+     * writes one kind of result and only reads the other, so the threads can share the table.
+     */
+    private static final class Generator {
+        private final PieceType piece;
+        private final byte[][] built;
+        private final int threads;
+        private final byte[] table = new byte[SIZE];
+
+        Generator(PieceType piece, byte[][] built, int threads) {
+            this.piece = piece;
+            this.built = built;
+            this.threads = Math.max(1, threads);
         }
 
-        return score;
-    }
-
-    private int getCenterControlBonus(int r, int c, int boardSize) {
-        int centerR = boardSize / 2;
-        int centerC = boardSize / 2;
-        int distFromCenter = Math.abs(r - centerR) + Math.abs(c - centerC);
-        int maxDist = boardSize;
-        return Math.max(0, 5 - (distFromCenter * 5 / maxDist));
-    }
+        byte[] generate() {
+            // Promotions can enter the other tables at any distance, so keep sweeping past their longest mate
+            int external = 0;
+            if (piece == PieceType.PAWN) {
+                for (byte[] other : built) {
+                    if (other == null) continue;
+                    for (byte value : other) {
+                        if ((value & 0xFF) != ILLEGAL) external = Math.max(external, value & 0xFF);
+                    }
+                }
+            }
+            sweep(0);
+            int idle = 0;
+            for (int n = 1; idle < 2 || n <= external + 1; n++) {
+                idle = sweep(n) ? 0 : idle + 1;
+            }
+            return table;
+        }
 
-    private int getPawnAdvanceBonus(int r, boolean isWhite, int boardSize) {
-        if (isWhite) {
-            int distanceFromTop = r;
-            return (boardSize - distanceFromTop) * 2;
-        } else {
-            int distanceFromBottom = boardSize - 1 - r;
-            return (boardSize - distanceFromBottom) * 2;
+        // One sweep over the table split between the threads; true if any position was resolved
+        private boolean sweep(int n) {
+            java.util.concurrent.atomic.AtomicBoolean changed = new java.util.concurrent.atomic.AtomicBoolean();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int first = (int) ((long) SIZE * t / threads), last = (int) ((long) SIZE * (t + 1) / threads);
+                workers[t] = new Thread(() -> {
+                    int[] children = new int[64];
+                    boolean any = false;
+                    for (int index = first; index < last; index++) {
+                        any |= resolve(index, n, children);
+                    }
+                    if (any) changed.set(true);
+                }, "TB-Generator-" + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Tablebase generation interrupted", e);
+                }
+            }
+            return changed.get();
         }
-    }
 
-    private int getKingSafetyBonus(GameLogic logic, int kingR, int kingC, boolean isWhite, int boardSize) {
-        int safety = 0;
-        for (int dr = -1; dr <= 1; dr++) {
-            for (int dc = -1; dc <= 1; dc++) {
-                if (dr == 0 && dc == 0) continue;
-                int nr = kingR + dr;
-                int nc = kingC + dc;
-                if (nr >= 0 && nr < boardSize && nc >= 0 && nc < boardSize) {
-                    Piece p = logic.getPiece(nr, nc);
-                    if (p != null && p.isWhite == isWhite) {
-                        safety += 3;
+        // Sweep 0 marks illegal positions and checkmates; later sweeps as described above
+        private boolean resolve(int index, int n, int[] children) {
+            int value = table[index] & 0xFF;
+            if (n == 0) {
+                if (!legal(index)) {
+                    table[index] = (byte) ILLEGAL;
+                } else if (children(index, children) == 0 && weakInCheck(index)) {
+                    table[index] = 2; // mated in 0
+                    return true;
+                }
+                return false;
+            }
+            if (value != 0) return false;
+            int count = children(index, children);
+            if (count == 0) return false; // stalemate
+            if ((n & 1) != 0) {
+                for (int i = 0; i < count; i++) {
+                    if (children[i] == n + 1) {
+                        table[index] = (byte) n;
+                        return true;
                     }
                 }
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if ((children[i] & 1) == 0) return false;
             }
+            table[index] = (byte) (n + 2);
+            return true;
         }
-        return safety;
-    }
 
-    private int getPieceValue(PieceType type) {
-        return switch (type) {
-            case PAWN -> 10;
-            case KNIGHT -> 30;
-            case BISHOP -> 30;
-            case ROOK -> 50;
-            case QUEEN -> 90;
-            case KING -> 900;
-        };
-    }
+        private boolean legal(int index) {
+            int stm = index >>> 18, strongKing = index >>> 12 & 63, weakKing = index >>> 6 & 63, square = index & 63;
+            if (strongKing == weakKing || square == strongKing || square == weakKing) return false;
+            if (distance(strongKing, weakKing) <= 1) return false;
+            if (piece == PieceType.PAWN && (square < 8 || square >= 56)) return false;
+            // The side that just moved cannot have left the weak king in check
+            return stm == 1 || !attacks(square, weakKing, strongKing);
+        }
 
-    private java.util.List<Move> generateAllMoves(GameLogic logic, boolean isWhite) {
-        java.util.List<Move> all = new java.util.ArrayList<>();
-        int boardSize = logic.getBoardSize();
-        for (int r = 0; r < boardSize; r++) {
-            for (int c = 0; c < boardSize; c++) {
-                Piece p = logic.getPiece(r, c);
-                if (p != null && p.isWhite == isWhite) {
-                    java.util.List<Point> dests = logic.getValidMoves(r, c);
-                    for (Point d : dests) {
-                        all.add(new Move(r, c, d.y, d.x));
+        private boolean weakInCheck(int index) {
+            return index >>> 18 == 1 && attacks(index & 63, index >>> 6 & 63, index >>> 12 & 63);
+        }
+
+        /**
+         * Values of the positions after each legal move, from the point of view of the side to
+         * move there (0 for draws and positions not resolved yet); returns the number of moves.
+         */
+        private int children(int index, int[] out) {
+            int stm = index >>> 18, strongKing = index >>> 12 & 63, weakKing = index >>> 6 & 63, square = index & 63;
+            int count = 0;
+            if (stm == 0) {
+                for (int[] step : KING_STEPS) {
+                    int to = offset(strongKing, step[0], step[1]);
+                    if (to < 0 || to == square || distance(to, weakKing) <= 1) continue;
+                    out[count++] = table[1 << 18 | to << 12 | weakKing << 6 | square] & 0xFF;
+                }
+                if (piece == PieceType.PAWN) {
+                    int to = square - 8;
+                    if (to == strongKing || to == weakKing) return count;
+                    if (to < 8) {
+                        out[count++] = promoted(PieceType.QUEEN, strongKing, weakKing, to);
+                        return count;
+                    }
+                    out[count++] = table[1 << 18 | strongKing << 12 | weakKing << 6 | to] & 0xFF;
+                    int jump = square - 16;
+                    if (square >= 48 && jump != strongKing && jump != weakKing) {
+                        out[count++] = table[1 << 18 | strongKing << 12 | weakKing << 6 | jump] & 0xFF;
+                    }
+                    return count;
+                }
+                for (int[] step : piece == PieceType.QUEEN ? KING_STEPS : ROOK_STEPS) {
+                    for (int to = offset(square, step[0], step[1]); to >= 0 && to != strongKing && to != weakKing;
+                            to = offset(to, step[0], step[1])) {
+                        out[count++] = table[1 << 18 | strongKing << 12 | weakKing << 6 | to] & 0xFF;
                     }
                 }
+                return count;
             }
+            for (int[] step : KING_STEPS) {
+                int to = offset(weakKing, step[0], step[1]);
+                if (to < 0 || distance(to, strongKing) <= 1) continue;
+                if (to == square) {
+                    out[count++] = 0; // the piece is taken: bare kings
+                } else if (!attacks(square, to, strongKing)) {
+                    out[count++] = table[strongKing << 12 | to << 6 | square] & 0xFF;
+                }
+            }
+            return count;
         }
-        return all;
-    }
-}
 
-class MoveRecord {
-    int sr, sc, tr, tc;
-    Piece moved, captured;
-    PieceType oldType;
-    public MoveRecord(int sr, int sc, int tr, int tc, Piece moved, Piece captured) {
-        this.sr=sr; this.sc=sc; this.tr=tr; this.tc=tc; 
-        this.moved=moved; this.captured=captured;
-        this.oldType = moved.type;
+        private int promoted(PieceType type, int strongKing, int weakKing, int square) {
+            byte[] other = built[type.ordinal()];
+            if (other == null) throw new IllegalStateException(fileName(type) + " must be generated before " + fileName(piece));
+            return other[1 << 18 | strongKing << 12 | weakKing << 6 | square] & 0xFF;
+        }
+
+        // Whether the piece on `from` attacks `target`, with a king on `blocker` in the way of sliders
+        private boolean attacks(int from, int target, int blocker) {
+            int dr = (target >> 3) - (from >> 3), dc = (target & 7) - (from & 7);
+            if (piece == PieceType.PAWN) return dr == -1 && Math.abs(dc) == 1;
+            boolean straight = dr == 0 || dc == 0;
+            boolean diagonal = Math.abs(dr) == Math.abs(dc);
+            if (from == target || !(straight || (diagonal && piece == PieceType.QUEEN))) return false;
+            int stepR = Integer.signum(dr), stepC = Integer.signum(dc);
+            for (int sq = offset(from, stepR, stepC); sq != target; sq = offset(sq, stepR, stepC)) {
+                if (sq == blocker) return false;
+            }
+            return true;
+        }
+
+        private static int offset(int square, int dr, int dc) {
+            int r = (square >> 3) + dr, c = (square & 7) + dc;
+            return r < 0 || r >= 8 || c < 0 || c >= 8 ? -1 : r * 8 + c;
+        }
+
+        private static int distance(int a, int b) {
+            return Math.max(Math.abs((a >> 3) - (b >> 3)), Math.abs((a & 7) - (b & 7)));
+        }
     }
 }
 
@@ -3216,13 +6280,59 @@ class PGNMove {
 
 enum PieceType { PAWN, ROOK, KNIGHT, BISHOP, QUEEN, KING }
 
+/**
+ * Immutable view of a piece for the UI. GameLogic stores pieces as byte codes:
+ * 0 = empty, white = ordinal + 1 (1..6), black = ordinal + 9 (9..14), 7 = off-board border.
+ */
 class Piece {
-    public PieceType type;
-    public boolean isWhite;
+    static final byte EMPTY = 0;
+    static final byte OFFBOARD = 7;
+    private static final PieceType[] TYPES = PieceType.values();
+    private static final Piece[] VIEWS = new Piece[16];
+    static {
+        for (PieceType t : TYPES) {
+            VIEWS[code(t, true)] = new Piece(t, true);
+            VIEWS[code(t, false)] = new Piece(t, false);
+        }
+    }
+
+    public final PieceType type;
+    public final boolean isWhite;
     public Piece(PieceType type, boolean isWhite) {
         this.type = type;
         this.isWhite = isWhite;
     }
+
+    byte code() {
+        return code(type, isWhite);
+    }
+
+    static byte code(PieceType type, boolean isWhite) {
+        return (byte) (type.ordinal() + (isWhite ? 1 : 9));
+    }
+
+    // Shared view for a code; null for EMPTY / OFFBOARD
+    static Piece of(byte code) {
+        return VIEWS[code & 15];
+    }
+
+    static boolean isWhite(int code) {
+        return code < 8;
+    }
+
+    static PieceType typeOf(int code) {
+        return TYPES[(code & 7) - 1];
+    }
+
+    // 0..5 for white, 6..11 for black, same layout as the bitboard piece arrays
+    static int colorTypeIndex(int code) {
+        return code < 8 ? code - 1 : code - 3;
+    }
+
+    // Does `code` hold a piece of the side opposite to `isWhite`? (false for EMPTY / OFFBOARD)
+    static boolean isEnemy(int code, boolean isWhite) {
+        return isWhite ? code > 8 : (code > 0 && code < 7);
+    }
 }
 
 // 动画数据类